@@ -0,0 +1,121 @@
+package com.digimarc.dmstocktake;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures streaming a large stock-take export. Each operation writes (or reads back) a whole
+ * Items table of the given number of rows. Writes go to a channel that discards the data, so
+ * the results show the cost of encoding rather than of storage.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class ExportBenchmark
+{
+    @Param( { "Csv", "Binary" } )
+    public String format;
+
+    @Param( { "500000" } )
+    public int rows;
+
+    private String[] mPayloads;
+    private byte[] mBinary;
+
+    /**
+     * Channel that counts and discards everything written to it.
+     */
+    private static final class DiscardChannel
+            implements WritableByteChannel
+    {
+        long mBytes;
+
+        @Override
+        public int write( ByteBuffer src )
+        {
+            int count = src.remaining();
+            src.position( src.limit() );
+            mBytes += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException
+    {
+        mPayloads = new String[1000];
+
+        for ( int i = 0; i < mPayloads.length; i++ )
+            mPayloads[i] = String.format( "GTIN-14:%014d", 12345678905L + i );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try ( SessionExporter exporter = new SessionExporter( out, SessionExporter.Format.Binary,
+                                                              SessionExporter.Table.Items ) )
+        {
+            writeRows( exporter );
+        }
+
+        mBinary = out.toByteArray();
+    }
+
+    @Benchmark
+    public long write() throws IOException
+    {
+        DiscardChannel channel = new DiscardChannel();
+
+        try ( SessionExporter exporter = new SessionExporter( channel, SessionExporter.Format.valueOf( format ),
+                                                              SessionExporter.Table.Items ) )
+        {
+            writeRows( exporter );
+        }
+
+        return channel.mBytes;
+    }
+
+    @Benchmark
+    public long readBinary() throws IOException
+    {
+        long facings = 0;
+
+        try ( SessionExportReader reader = new SessionExportReader( new ByteArrayInputStream( mBinary ) ) )
+        {
+            while ( reader.next() )
+                facings += reader.getFacingCount();
+        }
+
+        return facings;
+    }
+
+    private void writeRows( SessionExporter exporter ) throws IOException
+    {
+        for ( int i = 0; i < rows; i++ )
+            exporter.writeItem( mPayloads[i % mPayloads.length], "Image_1D_UPCA", 1 + i % 7,
+                                1_000_000L + i, 1_000_000L + i + 5_000 );
+    }
+}
@@ -0,0 +1,263 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Region geometry used for matching - expanding a region, finding its center and
+ * testing whether it contains a point - against the original implementation, which worked on
+ * lists of Points and found the expansion direction with atan2, cos and sin. The regions are
+ * rotated codes of assorted sizes and the test points are spread around them as they are when
+ * a read is checked against nearby tracks, so most of them are outside. Scores are per call.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+public class GeometryBenchmark
+{
+    private static final int Region_Count = 1024;
+
+    private final TrackingPolicy mPolicy = TrackingPolicy.fixed();
+
+    private List<List<Point>> mRegions;
+    private int[] mCorners;
+    private int[] mBounds;
+    private int[] mOut;
+    private Point[] mPoints;
+    private int[] mPointCoordinates;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        Random random = new Random( 42 );
+
+        mRegions = new ArrayList<>( Region_Count );
+        mCorners = new int[Region_Count * TrackStore.Corner_Stride];
+        mBounds = new int[Region_Count * ReaderResultCache.Region.Bounds_Stride];
+        mOut = new int[Region_Count * TrackStore.Corner_Stride];
+        mPoints = new Point[Region_Count];
+        mPointCoordinates = new int[Region_Count * 2];
+
+        for ( int r = 0; r < Region_Count; r++ )
+        {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            int width = 40 + random.nextInt( 200 );
+            int height = 10 + random.nextInt( 100 );
+            int cx = random.nextInt( 1920 );
+            int cy = random.nextInt( 1080 );
+
+            double ux = Math.cos( angle );
+            double uy = Math.sin( angle );
+            double[][] offsets = { { -width / 2.0, -height / 2.0 }, { width / 2.0, -height / 2.0 },
+                                   { width / 2.0, height / 2.0 }, { -width / 2.0, height / 2.0 } };
+
+            List<Point> points = new ArrayList<>( TrackStore.Corner_Count );
+
+            for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+            {
+                int x = (int) Math.round( cx + offsets[i][0] * ux - offsets[i][1] * uy );
+                int y = (int) Math.round( cy + offsets[i][0] * uy + offsets[i][1] * ux );
+
+                points.add( new Point( x, y ) );
+                mCorners[r * TrackStore.Corner_Stride + i * 2] = x;
+                mCorners[r * TrackStore.Corner_Stride + i * 2 + 1] = y;
+            }
+
+            mRegions.add( points );
+            ReaderResultCache.Region.bounds( mCorners, r * TrackStore.Corner_Stride, mBounds,
+                                             r * ReaderResultCache.Region.Bounds_Stride );
+
+            int px = cx + random.nextInt( 512 ) - 256;
+            int py = cy + random.nextInt( 512 ) - 256;
+
+            mPoints[r] = new Point( px, py );
+            mPointCoordinates[r * 2] = px;
+            mPointCoordinates[r * 2 + 1] = py;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public void expandLegacy( Blackhole blackhole )
+    {
+        for ( int r = 0; r < Region_Count; r++ )
+            blackhole.consume( legacyExpandedPoints( mRegions.get( r ), mPolicy ) );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public int[] expand()
+    {
+        for ( int r = 0; r < Region_Count; r++ )
+        {
+            ReaderResultCache.Region.expand( mCorners, r * TrackStore.Corner_Stride, mOut,
+                                             r * TrackStore.Corner_Stride, mPolicy );
+        }
+
+        return mOut;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public int centerLegacy()
+    {
+        int sum = 0;
+
+        for ( int r = 0; r < Region_Count; r++ )
+            sum += legacyCenter( mRegions.get( r ) ).x;
+
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public int[] center()
+    {
+        for ( int r = 0; r < Region_Count; r++ )
+            ReaderResultCache.Region.centerPoint( mCorners, r * TrackStore.Corner_Stride, mOut, r * 2 );
+
+        return mOut;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public int containsLegacy()
+    {
+        int count = 0;
+
+        for ( int r = 0; r < Region_Count; r++ )
+        {
+            if ( legacyContainsPoint( mRegions.get( r ), mPoints[r] ) )
+                count++;
+        }
+
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public int contains()
+    {
+        int count = 0;
+
+        for ( int r = 0; r < Region_Count; r++ )
+        {
+            if ( ReaderResultCache.Region.containsPoint( mCorners, r * TrackStore.Corner_Stride,
+                                                         mPointCoordinates[r * 2],
+                                                         mPointCoordinates[r * 2 + 1] ) )
+                count++;
+        }
+
+        return count;
+    }
+
+    // Tracks keep their bounding boxes with their regions, so matching doesn't rebuild them
+    @Benchmark
+    @OperationsPerInvocation( Region_Count )
+    public int containsCachedBounds()
+    {
+        int count = 0;
+
+        for ( int r = 0; r < Region_Count; r++ )
+        {
+            int b = r * ReaderResultCache.Region.Bounds_Stride;
+
+            if ( ReaderResultCache.Region.containsPoint( mCorners, r * TrackStore.Corner_Stride,
+                                                         mBounds[b], mBounds[b + 1], mBounds[b + 2],
+                                                         mBounds[b + 3], mPointCoordinates[r * 2],
+                                                         mPointCoordinates[r * 2 + 1] ) )
+                count++;
+        }
+
+        return count;
+    }
+
+    // The original Region.getExpandedPoints()
+    private static List<Point> legacyExpandedPoints( List<Point> corners, TrackingPolicy policy )
+    {
+        List<Point> pts = new ArrayList<>();
+
+        Point pt1 = corners.get( 0 );
+        Point pt2 = corners.get( 1 );
+        Point pt3 = corners.get( 2 );
+
+        int dX = pt3.x - pt2.x;
+        int dY = pt3.y - pt2.y;
+
+        double width = legacyDistanceToPoint( pt1, pt2 );
+        double height = legacyDistanceToPoint( pt2, pt3 );
+
+        double angle = Math.atan2( dY, dX );
+        double codeScale = height / width;
+        float expansionFactor = policy.getExpansionFactor( codeScale );
+        double verticalOffset = expansionFactor * height;
+
+        int xOffset = (int) Math.round( verticalOffset * Math.cos( angle ) );
+        int yOffset = (int) Math.round( verticalOffset * Math.sin( angle ) );
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            int factor = i < 2 ? -1 : 1;
+            Point pt = corners.get( i );
+
+            pts.add( new Point( pt.x + factor * xOffset, pt.y + factor * yOffset ) );
+        }
+
+        return pts;
+    }
+
+    // The original Region.update()
+    private static Point legacyCenter( List<Point> corners )
+    {
+        int cx = 0;
+        int cy = 0;
+
+        int numberOfPoints = corners.size();
+
+        for ( int i = 0; i < numberOfPoints; i++ )
+        {
+            cx += corners.get( i ).x;
+            cy += corners.get( i ).y;
+        }
+
+        return new Point( cx / numberOfPoints, cy / numberOfPoints );
+    }
+
+    // The original Region.containsPoint()
+    private static boolean legacyContainsPoint( List<Point> corners, Point point )
+    {
+        for ( int i = 0; i < corners.size(); i++ )
+        {
+            Point point1 = corners.get( i );
+            Point point2 = corners.get( i == corners.size() - 1 ? 0 : i + 1 );
+
+            if ( ( point2.x - point1.x ) * ( point.y - point1.y ) - ( point.x - point1.x ) * ( point2.y - point1.y ) < 0 )
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int legacyDistanceToPoint( Point pt1, Point pt2 )
+    {
+        int dx = pt1.x - pt2.x;
+        int dy = pt1.y - pt2.y;
+
+        return (int) Math.sqrt( dx * dx + dy * dy );
+    }
+}
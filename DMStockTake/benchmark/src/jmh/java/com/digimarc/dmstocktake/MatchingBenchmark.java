@@ -0,0 +1,168 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+
+import com.digimarc.dms.payload.Payload;
+import com.digimarc.dms.readers.DataDictionary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares greedy and optimal track matching on a shelf of identical products. The facings are
+ * stacked closely enough that each code's expanded region covers its neighbours, and the camera
+ * pans with some shake while individual reads jitter and drop out. Each operation processes one
+ * frame, timestamped as if captured at 30 fps. Besides the time per frame the benchmark reports
+ * idSwitches, the number of times a physical facing was given a different track ID than in the
+ * frame before.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+public class MatchingBenchmark
+{
+    private static final int Frame_Count = 600;
+    private static final int Rows = 4;
+    private static final int Code_Width = 60;
+    private static final int Code_Height = 20;
+    private static final int Spacing_X = 80;
+    private static final int Spacing_Y = 34;
+    private static final int Jitter = 4;
+
+    // Frames are timestamped as if captured at 30 fps
+    private static final long Frame_Interval = 33_333_333;
+
+    private static final String Truth_Key = "Truth";
+    private static final String Frame_Key = "Frame";
+
+    @Param( { "Greedy", "Optimal" } )
+    public String mode;
+
+    @Param( { "4", "16", "48" } )
+    public int facings;
+
+    private final Payload mPayload = new Payload( "00012345678905" );
+
+    private ReaderResultCache mCache;
+    private List<List<DataDictionary>> mFrames;
+    private int[] mLastIds;
+    private int mFrame;
+    private long mCaptureTime;
+
+    /**
+     * Per iteration counters reported alongside the timing results.
+     */
+    @State( Scope.Thread )
+    @AuxCounters( AuxCounters.Type.EVENTS )
+    public static class Counters
+    {
+        public long idSwitches;
+    }
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        mCache = new ReaderResultCache();
+        mCache.setMatchMode( ReaderResultCache.MatchMode.valueOf( mode ) );
+
+        mLastIds = new int[facings];
+        Arrays.fill( mLastIds, -1 );
+
+        Random random = new Random( 42 );
+        mFrames = new ArrayList<>( Frame_Count );
+
+        for ( int f = 0; f < Frame_Count; f++ )
+        {
+            // Slow pan to the right with a vertical shake
+            int panX = f * 3;
+            int panY = (int) Math.round( 10 * Math.sin( f / 4.0 ) );
+
+            List<DataDictionary> reads = new ArrayList<>( facings );
+
+            for ( int i = 0; i < facings; i++ )
+            {
+                // Roughly one read in ten is missed each frame
+                if ( random.nextInt( 10 ) == 0 )
+                    continue;
+
+                int x = 100 + ( i / Rows ) * Spacing_X - panX + random.nextInt( 2 * Jitter + 1 ) - Jitter;
+                int y = 100 + ( i % Rows ) * Spacing_Y + panY + random.nextInt( 2 * Jitter + 1 ) - Jitter;
+
+                DataDictionary metadata = new DataDictionary();
+                metadata.setValue( DataDictionary.ReadRegion, Arrays.asList(
+                        new Point( x, y ),
+                        new Point( x + Code_Width, y ),
+                        new Point( x + Code_Width, y + Code_Height ),
+                        new Point( x, y + Code_Height ) ) );
+                metadata.setValue( Truth_Key, i );
+                metadata.setValue( Frame_Key, f );
+
+                reads.add( metadata );
+            }
+
+            // Reads for a frame arrive in no particular order
+            Collections.shuffle( reads, random );
+
+            mFrames.add( reads );
+        }
+    }
+
+    @Benchmark
+    public int frame( Counters counters )
+    {
+        if ( mFrame == Frame_Count )
+        {
+            mFrame = 0;
+            mCache.clear();
+            Arrays.fill( mLastIds, -1 );
+        }
+
+        List<DataDictionary> reads = mFrames.get( mFrame );
+
+        mCaptureTime += Frame_Interval;
+        mCache.startFrame( mCaptureTime );
+
+        for ( int i = 0; i < reads.size(); i++ )
+            mCache.addReadRecord( mPayload, reads.get( i ), 0 );
+
+        mCache.endFrame();
+
+        // Check the ID of every track that was read in this frame against the ID its facing had
+        List<ReaderResultCache.ReadData> current = mCache.getCurrentResults();
+
+        for ( int i = 0; i < current.size(); i++ )
+        {
+            ReaderResultCache.ReadData data = current.get( i );
+            DataDictionary metadata = data.getMetadata();
+
+            if ( (Integer) metadata.getValue( Frame_Key ) != mFrame )
+                continue;
+
+            int truth = (Integer) metadata.getValue( Truth_Key );
+
+            if ( mLastIds[truth] >= 0 && mLastIds[truth] != data.getId() )
+                counters.idSwitches++;
+
+            mLastIds[truth] = data.getId();
+        }
+
+        mFrame++;
+
+        return current.size();
+    }
+}
@@ -0,0 +1,133 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+
+import com.digimarc.dms.payload.Payload;
+import com.digimarc.dms.readers.DataDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a FrameRecorder recording through ReaderResultCache as fast as possible. The recording
+ * is decoded up front so only the cache is timed. The recording is replayed several times so the
+ * JIT has warmed up by the last pass, and the results of the last pass are printed: the track
+ * counts, which can be compared between runs to check for tracking regressions, and the time
+ * taken per frame. Run it with:
+ * <pre>
+ *     ./gradlew replay -Precording=path/to/recording.dmsr [-Ppasses=10] [-Padaptive]
+ * </pre>
+ */
+public class ReplayDriver
+{
+    private static final int Default_Passes = 10;
+
+    private static class Frame
+    {
+        long mCaptureTime;
+        int mRotation;
+        final List<Payload> mPayloads = new ArrayList<>();
+        final List<DataDictionary> mReads = new ArrayList<>();
+    }
+
+    public static void main( String[] args ) throws IOException
+    {
+        if ( args.length < 1 || args[0].isEmpty() )
+        {
+            System.err.println( "Usage: ReplayDriver <recording> [passes] [adaptive]" );
+            System.exit( 2 );
+        }
+
+        int passes = args.length > 1 ? Integer.parseInt( args[1] ) : Default_Passes;
+        boolean adaptive = args.length > 2 && Boolean.parseBoolean( args[2] );
+
+        List<Frame> frames = load( args[0] );
+        int reads = 0;
+
+        for ( int i = 0; i < frames.size(); i++ )
+            reads += frames.get( i ).mReads.size();
+
+        System.out.println( "Recording: " + frames.size() + " frames, " + reads + " reads" );
+
+        long elapsed = 0;
+        int newTracks = 0;
+        int maxTracks = 0;
+        long trackFrames = 0;
+
+        for ( int pass = 0; pass < passes; pass++ )
+        {
+            ReaderResultCache cache = new ReaderResultCache( adaptive ? TrackingPolicy.adaptive() :
+                                                             TrackingPolicy.fixed() );
+            newTracks = 0;
+            maxTracks = 0;
+            trackFrames = 0;
+
+            long start = System.nanoTime();
+
+            for ( int f = 0; f < frames.size(); f++ )
+            {
+                Frame frame = frames.get( f );
+
+                cache.startFrame( frame.mCaptureTime );
+
+                for ( int r = 0; r < frame.mReads.size(); r++ )
+                    cache.addReadRecord( frame.mPayloads.get( r ), frame.mReads.get( r ), frame.mRotation );
+
+                cache.endFrame();
+
+                int current = cache.getCurrentResults().size();
+
+                newTracks += cache.getNewResults().size();
+                maxTracks = Math.max( maxTracks, current );
+                trackFrames += current;
+            }
+
+            elapsed = System.nanoTime() - start;
+        }
+
+        System.out.println( "Tracks: " + newTracks + " started, " + maxTracks + " at most, " +
+                            trackFrames + " track frames" );
+        System.out.printf( "Time: %.1f us/frame, %.0f frames/s%n", elapsed / 1000.0 / frames.size(),
+                           frames.size() * 1e9 / elapsed );
+    }
+
+    private static List<Frame> load( String path ) throws IOException
+    {
+        List<Frame> frames = new ArrayList<>();
+        int[] corners = new int[TrackStore.Corner_Stride];
+
+        try ( FrameRecordingReader reader = new FrameRecordingReader(
+                new BufferedInputStream( new FileInputStream( path ) ) ) )
+        {
+            while ( reader.next() )
+            {
+                Frame frame = new Frame();
+                frame.mCaptureTime = reader.getCaptureTime();
+                frame.mRotation = reader.getRotation();
+
+                for ( int r = 0; r < reader.getReadCount(); r++ )
+                {
+                    reader.getCorners( r, corners, 0 );
+
+                    DataDictionary metadata = new DataDictionary();
+                    metadata.setValue( DataDictionary.ReadRegion, Arrays.asList(
+                            new Point( corners[0], corners[1] ),
+                            new Point( corners[2], corners[3] ),
+                            new Point( corners[4], corners[5] ),
+                            new Point( corners[6], corners[7] ) ) );
+
+                    frame.mPayloads.add( reader.getPayload( r ) );
+                    frame.mReads.add( metadata );
+                }
+
+                frames.add( frame );
+            }
+        }
+
+        return frames;
+    }
+}
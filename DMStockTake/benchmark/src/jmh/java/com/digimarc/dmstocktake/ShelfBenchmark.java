@@ -0,0 +1,197 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+
+import com.digimarc.dms.payload.Payload;
+import com.digimarc.dms.readers.DataDictionary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how ReaderResultCache scales with the number of codes in view. Each operation
+ * processes one 1080p frame of a shelf holding the given number of codes, laid out in a grid
+ * that fills the frame. Groups of up to four neighbouring facings share a payload, reads jitter
+ * by a few pixels and roughly one in ten is missed. The camera is either held still or pans
+ * back and forth at 10 pixels per frame, so codes leave and enter the frame.
+ * <p>
+ * frame reports the time per frame and, with the GC profiler (enabled in build.gradle), the
+ * bytes allocated per frame as gc.alloc.rate.norm. throughput reports frames per second
+ * together with tracks, the number of current tracks handled per second. threads is the number
+ * of threads reads are matched on, see ReaderResultCache.setParallelMatching().
+ */
+@State( Scope.Thread )
+public class ShelfBenchmark
+{
+    public enum Motion
+    {
+        Stationary,
+        Panning
+    }
+
+    private static final int Frame_Width = 1920;
+    private static final int Frame_Height = 1080;
+
+    // One sweep of the pan in each direction. The scene repeats after this many frames, so the
+    // benchmark can loop over it without the tracks jumping.
+    private static final int Frame_Count = 120;
+    private static final int Pan_Speed = 10;
+
+    private static final int Jitter = 2;
+
+    // Frames are timestamped as if captured at 30 fps
+    private static final long Frame_Interval = 33_333_333;
+
+    // Frames with fewer reads than this are matched on one thread
+    private static final int Parallel_Threshold = 128;
+
+    @Param( { "10", "100", "500", "2000" } )
+    public int codes;
+
+    @Param( { "Stationary", "Panning" } )
+    public Motion motion;
+
+    @Param( { "1", "4" } )
+    public int threads;
+
+    private ReaderResultCache mCache;
+    private List<List<DataDictionary>> mFrames;
+    private List<List<Payload>> mPayloads;
+    private int mFrame;
+    private long mCaptureTime;
+
+    /**
+     * Per iteration counters reported alongside the throughput results.
+     */
+    @State( Scope.Thread )
+    @AuxCounters( AuxCounters.Type.OPERATIONS )
+    public static class Counters
+    {
+        public long tracks;
+    }
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        mCache = new ReaderResultCache();
+        mCache.setParallelMatching( threads, Parallel_Threshold );
+
+        // Grid that fills the frame with cells of the frame's aspect ratio. The codes take up
+        // most of each cell and are wider than they are tall.
+        int columns = (int) Math.ceil( Math.sqrt( codes * (double) Frame_Width / Frame_Height ) );
+        int rows = ( codes + columns - 1 ) / columns;
+        int cellWidth = Frame_Width / columns;
+        int cellHeight = Frame_Height / rows;
+        int codeWidth = cellWidth * 3 / 4;
+        int codeHeight = Math.min( cellHeight * 3 / 4, codeWidth / 2 );
+
+        Payload[] payloads = new Payload[codes];
+
+        for ( int i = 0; i < codes; i++ )
+            payloads[i] = new Payload( String.format( "%014d", 12345678L + i / 4 ) );
+
+        Random random = new Random( 42 );
+        mFrames = new ArrayList<>( Frame_Count );
+        mPayloads = new ArrayList<>( Frame_Count );
+
+        for ( int f = 0; f < Frame_Count; f++ )
+        {
+            int pan = 0;
+
+            if ( motion == Motion.Panning )
+                pan = Pan_Speed * ( f < Frame_Count / 2 ? f : Frame_Count - f );
+
+            List<DataDictionary> reads = new ArrayList<>( codes );
+            List<Payload> readPayloads = new ArrayList<>( codes );
+
+            for ( int i = 0; i < codes; i++ )
+            {
+                if ( random.nextInt( 10 ) == 0 )
+                    continue;
+
+                int x = ( i % columns ) * cellWidth - pan + random.nextInt( 2 * Jitter + 1 ) - Jitter;
+                int y = ( i / columns ) * cellHeight + random.nextInt( 2 * Jitter + 1 ) - Jitter;
+
+                // Codes that have panned out of the frame aren't read
+                if ( x < 0 || x + codeWidth > Frame_Width )
+                    continue;
+
+                DataDictionary metadata = new DataDictionary();
+                metadata.setValue( DataDictionary.ReadRegion, Arrays.asList(
+                        new Point( x, y ),
+                        new Point( x + codeWidth, y ),
+                        new Point( x + codeWidth, y + codeHeight ),
+                        new Point( x, y + codeHeight ) ) );
+
+                reads.add( metadata );
+                readPayloads.add( payloads[i] );
+            }
+
+            mFrames.add( reads );
+            mPayloads.add( readPayloads );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        mCache.setParallelMatching( 1, 0 );
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.AverageTime )
+    @OutputTimeUnit( TimeUnit.NANOSECONDS )
+    public int frame()
+    {
+        return processFrame();
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.Throughput )
+    @OutputTimeUnit( TimeUnit.SECONDS )
+    public int throughput( Counters counters )
+    {
+        int tracks = processFrame();
+
+        counters.tracks += tracks;
+
+        return tracks;
+    }
+
+    // Runs the cache over the next frame and returns the number of current tracks
+    private int processFrame()
+    {
+        if ( mFrame == Frame_Count )
+            mFrame = 0;
+
+        List<DataDictionary> reads = mFrames.get( mFrame );
+        List<Payload> payloads = mPayloads.get( mFrame );
+
+        mCaptureTime += Frame_Interval;
+        mCache.startFrame( mCaptureTime );
+
+        for ( int i = 0; i < reads.size(); i++ )
+            mCache.addReadRecord( payloads.get( i ), reads.get( i ), 0 );
+
+        mCache.endFrame();
+
+        mFrame++;
+
+        return mCache.getCurrentResults().size();
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * JVM shim for android.os.SystemClock.
+ */
+public class SystemClock
+{
+    public static long elapsedRealtimeNanos()
+    {
+        return System.nanoTime();
+    }
+}
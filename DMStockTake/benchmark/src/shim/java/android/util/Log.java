@@ -0,0 +1,25 @@
+package android.util;
+
+/**
+ * JVM shim for android.util.Log. Messages are written to standard error.
+ */
+public final class Log
+{
+    public static int i( String tag, String msg )
+    {
+        System.err.println( tag + ": " + msg );
+        return 0;
+    }
+
+    public static int w( String tag, String msg )
+    {
+        System.err.println( tag + ": " + msg );
+        return 0;
+    }
+
+    public static int w( String tag, String msg, Throwable tr )
+    {
+        System.err.println( tag + ": " + msg + ": " + tr );
+        return 0;
+    }
+}
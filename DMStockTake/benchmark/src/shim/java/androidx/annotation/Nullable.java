@@ -0,0 +1,12 @@
+package androidx.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * JVM shim for androidx.annotation.Nullable.
+ */
+@Retention( RetentionPolicy.CLASS )
+public @interface Nullable
+{
+}
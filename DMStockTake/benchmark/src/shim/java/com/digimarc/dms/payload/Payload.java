@@ -0,0 +1,53 @@
+package com.digimarc.dms.payload;
+
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.readers.BaseReader;
+
+/**
+ * JVM shim for the DMSDK Payload class. Payloads are compared by their representation string.
+ * Payloads created from a representation alone report the Digimarc symbology.
+ */
+public class Payload
+{
+    private final String mRepresentation;
+    private final BaseReader.Symbology mSymbology;
+
+    public Payload( @NonNull String representation )
+    {
+        this( representation, BaseReader.ImageSymbology.Image_Digimarc );
+    }
+
+    public Payload( @NonNull String representation, @NonNull BaseReader.Symbology symbology )
+    {
+        mRepresentation = representation;
+        mSymbology = symbology;
+    }
+
+    @NonNull
+    public String getRepresentation()
+    {
+        return mRepresentation;
+    }
+
+    @NonNull
+    public BaseReader.Symbology getSymbology()
+    {
+        return mSymbology;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( this == o ) return true;
+        if ( o == null || getClass() != o.getClass() ) return false;
+
+        return mRepresentation.equals( ( (Payload) o ).mRepresentation );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return mRepresentation.hashCode();
+    }
+}
@@ -0,0 +1,30 @@
+package com.digimarc.dms.readers;
+
+/**
+ * JVM shim for the DMSDK BaseReader class. Only the symbology types are provided.
+ */
+public class BaseReader
+{
+    public interface Symbology
+    {
+        int getBitmaskValue();
+    }
+
+    public enum ImageSymbology implements Symbology
+    {
+        Image_Digimarc,
+        Image_1D_UPCA,
+        Image_1D_UPCE,
+        Image_1D_EAN13,
+        Image_1D_EAN8,
+        Image_1D_Code128,
+        Image_1D_ITF_GTIN_14,
+        Image_1D_ITF_Variable;
+
+        @Override
+        public int getBitmaskValue()
+        {
+            return 1 << ordinal();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.digimarc.dms.readers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM shim for the DMSDK DataDictionary class.
+ */
+public class DataDictionary
+{
+    public static final String ReadRegion = "ReadRegion";
+
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    @Nullable
+    public Object getValue( @NonNull String key )
+    {
+        return mValues.get( key );
+    }
+
+    public void setValue( @NonNull String key, @Nullable Object value )
+    {
+        mValues.put( key, value );
+    }
+}
@@ -0,0 +1,19 @@
+package com.digimarc.dms.readers;
+
+import android.graphics.Point;
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * JVM shim for the DMSDK Utility class. Benchmark scenes are generated in display coordinates,
+ * so no rotation is applied.
+ */
+public class Utility
+{
+    @NonNull
+    public static List<Point> applyRotationToPoints( @NonNull List<Point> points, int rotation )
+    {
+        return points;
+    }
+}
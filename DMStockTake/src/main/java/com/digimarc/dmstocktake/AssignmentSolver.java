@@ -0,0 +1,178 @@
+package com.digimarc.dmstocktake;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost assignment solver (Hungarian algorithm) used by ReaderResultCache to match the
+ * reads of one payload to that payload's tracks. Costs are given as a rows x columns matrix and
+ * pairs that may not be matched are given the cost Infeasible. The solver's buffers are reused
+ * between calls and only grow when a larger problem is seen.
+ */
+class AssignmentSolver
+{
+    // Cost for a pair that must not be matched. This is far larger than the sum of any set of
+    // real costs, so the solver will only use such a pair when nothing else is possible. Those
+    // pairs are reported as unassigned.
+    static final long Infeasible = 1L << 40;
+
+    private static final long Unbounded = Long.MAX_VALUE / 4;
+
+    private long[] mCost = new long[0];
+    private int mRows;
+    private int mColumns;
+
+    private long[] mU = new long[0];
+    private long[] mV = new long[0];
+    private long[] mMinV = new long[0];
+    private int[] mP = new int[0];
+    private int[] mWay = new int[0];
+    private boolean[] mUsed = new boolean[0];
+
+    private int[] mAssignment = new int[0];
+
+    /**
+     * Prepare the solver for a new problem. All costs are set to Infeasible.
+     * @param rows    Number of rows (reads)
+     * @param columns Number of columns (tracks)
+     */
+    void reset( int rows, int columns )
+    {
+        mRows = rows;
+        mColumns = columns;
+
+        int size = rows * columns;
+        if ( mCost.length < size )
+            mCost = new long[size];
+
+        Arrays.fill( mCost, 0, size, Infeasible );
+
+        int n = Math.max( rows, columns ) + 1;
+        if ( mP.length < n )
+        {
+            mU = new long[n];
+            mV = new long[n];
+            mMinV = new long[n];
+            mP = new int[n];
+            mWay = new int[n];
+            mUsed = new boolean[n];
+            mAssignment = new int[n];
+        }
+    }
+
+    void setCost( int row, int column, long cost )
+    {
+        mCost[row * mColumns + column] = cost;
+    }
+
+    /**
+     * Solve the current problem.
+     * @param deadline System.nanoTime() value after which the solver gives up
+     * @return true if a solution was found, false if the deadline passed first.
+     */
+    boolean solve( long deadline )
+    {
+        // The algorithm requires no more rows than columns, so solve the transposed problem
+        // when there are more reads than tracks.
+        boolean transposed = mRows > mColumns;
+        int n = transposed ? mColumns : mRows;
+        int m = transposed ? mRows : mColumns;
+
+        Arrays.fill( mU, 0, n + 1, 0 );
+        Arrays.fill( mV, 0, m + 1, 0 );
+        Arrays.fill( mP, 0, m + 1, 0 );
+        Arrays.fill( mWay, 0, m + 1, 0 );
+
+        for ( int i = 1; i <= n; i++ )
+        {
+            if ( System.nanoTime() > deadline )
+                return false;
+
+            mP[0] = i;
+            int j0 = 0;
+
+            Arrays.fill( mMinV, 0, m + 1, Unbounded );
+            Arrays.fill( mUsed, 0, m + 1, false );
+
+            do
+            {
+                mUsed[j0] = true;
+                int i0 = mP[j0];
+                long delta = Unbounded;
+                int j1 = 0;
+
+                for ( int j = 1; j <= m; j++ )
+                {
+                    if ( mUsed[j] )
+                        continue;
+
+                    long cur = cost( transposed, i0 - 1, j - 1 ) - mU[i0] - mV[j];
+
+                    if ( cur < mMinV[j] )
+                    {
+                        mMinV[j] = cur;
+                        mWay[j] = j0;
+                    }
+
+                    if ( mMinV[j] < delta )
+                    {
+                        delta = mMinV[j];
+                        j1 = j;
+                    }
+                }
+
+                for ( int j = 0; j <= m; j++ )
+                {
+                    if ( mUsed[j] )
+                    {
+                        mU[mP[j]] += delta;
+                        mV[j] -= delta;
+                    }
+                    else
+                        mMinV[j] -= delta;
+                }
+
+                j0 = j1;
+            }
+            while ( mP[j0] != 0 );
+
+            do
+            {
+                int j1 = mWay[j0];
+                mP[j0] = mP[j1];
+                j0 = j1;
+            }
+            while ( j0 != 0 );
+        }
+
+        Arrays.fill( mAssignment, 0, mRows, -1 );
+
+        for ( int j = 1; j <= m; j++ )
+        {
+            if ( mP[j] == 0 )
+                continue;
+
+            int row = transposed ? j - 1 : mP[j] - 1;
+            int column = transposed ? mP[j] - 1 : j - 1;
+
+            if ( mCost[row * mColumns + column] < Infeasible )
+                mAssignment[row] = column;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the column assigned to a row by the last successful call to solve().
+     * @param row Row index
+     * @return Column index or -1 if the row is unassigned.
+     */
+    int getAssignment( int row )
+    {
+        return mAssignment[row];
+    }
+
+    private long cost( boolean transposed, int i, int j )
+    {
+        return transposed ? mCost[j * mColumns + i] : mCost[i * mColumns + j];
+    }
+}
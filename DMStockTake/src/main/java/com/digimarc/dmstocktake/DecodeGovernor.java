@@ -0,0 +1,232 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides which camera frames are worth decoding. While codes are in view every frame is decoded,
+ * up to a maximum rate. Once a number of decoded frames in a row have produced no reads or tracks
+ * the time between decodes doubles with each further empty frame, down to a floor rate, so an
+ * idle camera costs little battery. A frame with reads or live tracks returns straight to the
+ * maximum rate.
+ * <p>
+ * The governor also measures how long each decode takes, from the capture of the frame to its
+ * results so decodes the reader finishes asynchronously are fully counted, and stretches the time
+ * between decodes so decoding never uses more than a set fraction of a CPU, whatever the rate
+ * would otherwise be. The CPU budget takes priority over the floor rate.
+ * <p>
+ * Governors are created with a Builder. shouldDecode() is called for each camera frame,
+ * onSubmitted() once a frame has been handed to the reader, onDecoded() when a frame's results
+ * arrive and onResults() after each result frame. These may be called on different threads.
+ */
+public class DecodeGovernor
+{
+    private static final float Default_Max_Rate = 30;
+    private static final float Default_Floor_Rate = 3;
+    private static final int Default_Idle_Frames = 10;
+    private static final float Default_Cpu_Budget = 0.5f;
+
+    // Weight of the newest decode in the average decode time
+    private static final float Latency_Weight = 0.2f;
+
+    private final long mMinInterval;
+    private final long mMaxInterval;
+    private final int mIdleFrames;
+    private final float mCpuBudget;
+
+    // Time between decodes set by the reads, before the CPU budget is applied (nanoseconds)
+    private long mInterval;
+    private int mEmptyFrames = 0;
+    private float mDecodeTime = 0;
+
+    private long mLastDecode = Long.MIN_VALUE;
+    private long mSkippedCount = 0;
+
+    private DecodeGovernor( @NonNull Builder builder )
+    {
+        mMinInterval = Math.max( 1, (long) ( 1e9 / builder.mMaxRate ) );
+        mMaxInterval = Math.max( mMinInterval, (long) ( 1e9 / builder.mFloorRate ) );
+        mIdleFrames = builder.mIdleFrames;
+        mCpuBudget = builder.mCpuBudget;
+        mInterval = mMinInterval;
+    }
+
+    /**
+     * Create a builder for a DecodeGovernor. The builder starts with a maximum rate of 30 frames
+     * per second, a floor of 3 frames per second after 10 empty frames and a CPU budget of half a
+     * core.
+     * @return Builder object
+     */
+    @NonNull
+    public static Builder Builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Decide whether to decode a camera frame. Frames that are then handed to the reader should
+     * be passed to onSubmitted(); frames that aren't, e.g. because no buffer was free for them,
+     * don't hold up the next decode.
+     * @param captureTime Time the frame was captured in nanoseconds
+     * @return true to decode the frame, false to skip it.
+     */
+    public synchronized boolean shouldDecode( long captureTime )
+    {
+        // Frames up to half a frame at the maximum rate early are decoded, so jitter in the
+        // capture times doesn't halve the rate. The CPU budget is never shortened.
+        long interval = Math.max( mInterval - mMinInterval / 2, getBudgetInterval() );
+
+        if ( mLastDecode != Long.MIN_VALUE && captureTime - mLastDecode < interval )
+        {
+            mSkippedCount++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Record that a frame has been handed to the reader. The time until the next decode is
+     * measured from this frame.
+     * @param captureTime Time the frame was captured in nanoseconds
+     */
+    public synchronized void onSubmitted( long captureTime )
+    {
+        mLastDecode = Math.max( mLastDecode, captureTime );
+    }
+
+    /**
+     * Record how long a decode took.
+     * @param decodeTime Time from the capture of the frame to its results in nanoseconds
+     */
+    public synchronized void onDecoded( long decodeTime )
+    {
+        if ( mDecodeTime == 0 )
+            mDecodeTime = decodeTime;
+        else
+            mDecodeTime += Latency_Weight * ( decodeTime - mDecodeTime );
+    }
+
+    /**
+     * Record whether a decoded frame found anything.
+     * @param active true if the frame had reads or there are live or new tracks
+     */
+    public synchronized void onResults( boolean active )
+    {
+        if ( active )
+        {
+            mEmptyFrames = 0;
+            mInterval = mMinInterval;
+            return;
+        }
+
+        if ( ++mEmptyFrames < mIdleFrames )
+            return;
+
+        // Back off exponentially towards the floor rate
+        mInterval = Math.min( mMaxInterval, mInterval * 2 );
+    }
+
+    /**
+     * Get the time the governor currently leaves between decodes: the time set by the reads,
+     * stretched if necessary to keep the average decode time within the CPU budget.
+     * @return Decode interval in nanoseconds
+     */
+    public synchronized long getDecodeInterval()
+    {
+        return Math.max( mInterval, getBudgetInterval() );
+    }
+
+    // Shortest time between decodes that keeps the average decode time within the CPU budget
+    private long getBudgetInterval()
+    {
+        return (long) ( mDecodeTime / mCpuBudget );
+    }
+
+    /**
+     * Get the average time a decode takes.
+     * @return Decode time in nanoseconds
+     */
+    public synchronized long getDecodeTime()
+    {
+        return (long) mDecodeTime;
+    }
+
+    /**
+     * Get the number of frames the governor has skipped.
+     * @return Skipped frame count
+     */
+    public synchronized long getSkippedCount()
+    {
+        return mSkippedCount;
+    }
+
+    /**
+     * Builder for DecodeGovernor objects.
+     */
+    public static class Builder
+    {
+        private float mMaxRate = Default_Max_Rate;
+        private float mFloorRate = Default_Floor_Rate;
+        private int mIdleFrames = Default_Idle_Frames;
+        private float mCpuBudget = Default_Cpu_Budget;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Set the highest rate frames are decoded at while codes are in view.
+         * @param rate Frames per second
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setMaxRate( float rate )
+        {
+            mMaxRate = rate;
+            return this;
+        }
+
+        /**
+         * Set the lowest rate frames are decoded at while no codes are in view. The CPU budget can
+         * lower the rate further.
+         * @param rate Frames per second
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setFloorRate( float rate )
+        {
+            mFloorRate = rate;
+            return this;
+        }
+
+        /**
+         * Set the number of empty frames in a row after which the decode rate starts to back off.
+         * @param frames Frame count
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setIdleFrames( int frames )
+        {
+            mIdleFrames = frames;
+            return this;
+        }
+
+        /**
+         * Set the share of a CPU core that decoding may use on average.
+         * @param budget Fraction of a core, greater than 0 and at most 1
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setCpuBudget( float budget )
+        {
+            mCpuBudget = budget;
+            return this;
+        }
+
+        @NonNull
+        public DecodeGovernor build()
+        {
+            return new DecodeGovernor( this );
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.readers.DataDictionary;
+import com.digimarc.dms.readers.ReaderOptions;
+
+import java.util.List;
+
+/**
+ * Chooses the reader's TraditionalBarcodeReadDistance from the sizes of the codes being read. The
+ * size of a code is the longest edge of its read region as a fraction of the frame's longer side,
+ * so sizes can be compared across the different camera resolutions the distances use. Over a
+ * sliding window of recent frames, small codes need Distance_Far and large codes need
+ * Distance_Near. The cheapest distance that covers every size seen is chosen: Distance_Near,
+ * Distance_Far, or Distance_FullRange when both large and small codes are in view.
+ * <p>
+ * A distance is only dropped once the sizes that needed it are clear of its threshold by a
+ * quarter, and at most one change is made a second, so sizes near a threshold don't make the
+ * reader flap between distances. When nothing has been read for a while Distance_FullRange is
+ * chosen so a code at any distance can be found.
+ * <p>
+ * addRead() and update() are called on the thread that processes frames. getDistance() may be
+ * called from any thread.
+ */
+public class DistanceSelector
+{
+    // Codes smaller than this are too small to read well at Distance_Near, and codes larger than
+    // this too large to read well at Distance_Far. These are roughly a UPC-A at 12 and 8 inches with
+    // a typical phone camera.
+    private static final float Near_Min_Size = 0.08f;
+    private static final float Far_Max_Size = 0.15f;
+
+    // Sizes must clear a threshold by this fraction before the distance that needed them is dropped
+    private static final float Hysteresis = 0.25f;
+
+    // Length of the sliding window, shortest time between changes and time without reads before
+    // Distance_FullRange is chosen (milliseconds)
+    private static final long Window = 1000;
+    private static final long Min_Dwell = 1000;
+    private static final long Idle_Time = 2000;
+
+    // Frames with reads kept in the window
+    private static final int Max_Window_Frames = 64;
+
+    // Longer side of the camera frame in pixels
+    private float mFrameSize = 0;
+
+    // Smallest and largest code size in the current frame
+    private float mFrameMin = Float.MAX_VALUE;
+    private float mFrameMax = 0;
+
+    // Ring of recent frames that had reads
+    private final long[] mTimes = new long[Max_Window_Frames];
+    private final float[] mMins = new float[Max_Window_Frames];
+    private final float[] mMaxes = new float[Max_Window_Frames];
+    private int mNext = 0;
+    private int mCount = 0;
+
+    private volatile String mDistance;
+    private long mLastChange = Long.MIN_VALUE;
+    private long mLastRead = Long.MIN_VALUE;
+
+    /**
+     * Create a selector.
+     * @param distance Distance the reader is using now, one of the ReaderOptions distance values
+     */
+    public DistanceSelector( @NonNull String distance )
+    {
+        mDistance = distance;
+    }
+
+    /**
+     * Set the camera resolution that read regions are given in.
+     * @param width  Frame width in pixels
+     * @param height Frame height in pixels
+     */
+    public synchronized void setFrameSize( int width, int height )
+    {
+        mFrameSize = Math.max( width, height );
+    }
+
+    /**
+     * Add the size of a code read in the current frame.
+     * @param metadata Metadata that accompanied the payload
+     */
+    public synchronized void addRead( @NonNull DataDictionary metadata )
+    {
+        Object value = metadata.getValue( DataDictionary.ReadRegion );
+
+        if ( value == null || mFrameSize <= 0 )
+            return;
+
+        List<Point> points = (List<Point>) value;
+
+        if ( points.size() < 2 )
+            return;
+
+        float longest = 0;
+
+        for ( int i = 0; i < points.size(); i++ )
+        {
+            Point a = points.get( i );
+            Point b = points.get( ( i + 1 ) % points.size() );
+
+            longest = Math.max( longest, (float) Math.hypot( b.x - a.x, b.y - a.y ) );
+        }
+
+        float size = longest / mFrameSize;
+
+        mFrameMin = Math.min( mFrameMin, size );
+        mFrameMax = Math.max( mFrameMax, size );
+    }
+
+    /**
+     * End the current frame and choose the distance for the frames that follow.
+     * @param frameTime Time of the frame in milliseconds
+     * @return true if the distance changed.
+     */
+    public synchronized boolean update( long frameTime )
+    {
+        if ( mFrameMax > 0 )
+        {
+            mTimes[mNext] = frameTime;
+            mMins[mNext] = mFrameMin;
+            mMaxes[mNext] = mFrameMax;
+            mNext = ( mNext + 1 ) % Max_Window_Frames;
+            mCount = Math.min( mCount + 1, Max_Window_Frames );
+
+            mLastRead = frameTime;
+        }
+
+        mFrameMin = Float.MAX_VALUE;
+        mFrameMax = 0;
+
+        // The time without reads counts from the first frame
+        if ( mLastRead == Long.MIN_VALUE )
+            mLastRead = frameTime;
+
+        if ( mLastChange != Long.MIN_VALUE && frameTime - mLastChange < Min_Dwell )
+            return false;
+
+        String distance;
+
+        if ( frameTime - mLastRead >= Idle_Time )
+            distance = ReaderOptions.Distance_FullRange;
+        else
+            distance = chooseDistance( frameTime );
+
+        if ( distance == null || distance.equals( mDistance ) )
+            return false;
+
+        mDistance = distance;
+        mLastChange = frameTime;
+
+        return true;
+    }
+
+    /**
+     * Get the distance the reader should use.
+     * @return One of the ReaderOptions distance values
+     */
+    @NonNull
+    public String getDistance()
+    {
+        return mDistance;
+    }
+
+    /**
+     * Forget the sizes seen so far, e.g. when automatic selection is turned on.
+     * @param distance Distance the reader is using now, one of the ReaderOptions distance values
+     */
+    public synchronized void reset( @NonNull String distance )
+    {
+        mDistance = distance;
+        mCount = 0;
+        mFrameMin = Float.MAX_VALUE;
+        mFrameMax = 0;
+        mLastChange = Long.MIN_VALUE;
+        mLastRead = Long.MIN_VALUE;
+    }
+
+    // Returns the cheapest distance covering the sizes in the window, or null if the window is
+    // empty
+    private String chooseDistance( long frameTime )
+    {
+        float min = Float.MAX_VALUE;
+        float max = 0;
+
+        for ( int i = 0; i < mCount; i++ )
+        {
+            int index = ( mNext - 1 - i + Max_Window_Frames ) % Max_Window_Frames;
+
+            if ( frameTime - mTimes[index] > Window )
+                break;
+
+            min = Math.min( min, mMins[index] );
+            max = Math.max( max, mMaxes[index] );
+        }
+
+        if ( max == 0 )
+            return null;
+
+        boolean coversFar = !ReaderOptions.Distance_Near.equals( mDistance );
+        boolean coversNear = !ReaderOptions.Distance_Far.equals( mDistance );
+
+        // Between a threshold and its hysteresis band the current distance is kept
+        boolean needFar = min < Near_Min_Size || ( coversFar && min < Near_Min_Size * ( 1 + Hysteresis ) );
+        boolean needNear = max > Far_Max_Size || ( coversNear && max > Far_Max_Size / ( 1 + Hysteresis ) );
+
+        if ( needFar && needNear )
+            return ReaderOptions.Distance_FullRange;
+
+        if ( needFar )
+            return ReaderOptions.Distance_Far;
+
+        return ReaderOptions.Distance_Near;
+    }
+}
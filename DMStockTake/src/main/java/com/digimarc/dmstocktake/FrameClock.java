@@ -0,0 +1,30 @@
+package com.digimarc.dmstocktake;
+
+import android.os.SystemClock;
+
+/**
+ * Source of frame timestamps for ReaderResultCache. Timestamps must come from a monotonic clock
+ * so that staleness calculations aren't thrown off by changes to the wall clock. Supplying a
+ * different clock allows recorded sessions to be replayed deterministically.
+ */
+public interface FrameClock
+{
+    /**
+     * Clock based on SystemClock.elapsedRealtimeNanos(). This is the same time base used for
+     * camera frame timestamps.
+     */
+    FrameClock Elapsed_Realtime = new FrameClock()
+    {
+        @Override
+        public long nanoTime()
+        {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    /**
+     * Get the current time.
+     * @return Time in nanoseconds
+     */
+    long nanoTime();
+}
@@ -0,0 +1,287 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.digimarc.dms.payload.Payload;
+import com.digimarc.dms.readers.DataDictionary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the reads the reader reports for each frame so they can be replayed through
+ * ReaderResultCache later, e.g. to tune the tracker or check it for regressions off the device.
+ * FrameRecordingReader reads the recordings on a plain JVM.
+ * <p>
+ * A recording starts with the magic number "DMSR" and the format version. Each frame follows as
+ * a varint length and the frame's fields: the capture time as a zig-zag varint change from the
+ * previous frame, the rotation, the number of reads and then the reads. A read is its payload
+ * and the four corners of its read region before rotation. Payloads are stored once, as a varint
+ * length and UTF-8 bytes, and later reads refer to them by index. The first corner is stored as
+ * zig-zag varints and the others as zig-zag varint changes from the corner before them.
+ * <p>
+ * Frames are written whole, so a recording that is cut off (for instance because the app was
+ * killed) can still be read up to its last complete frame. Reads without a read region are not
+ * recorded as ReaderResultCache ignores them. Reads whose payload is longer than
+ * Max_Payload_Length bytes are skipped and the rest of the frame is still recorded; close() then
+ * reports the skipped reads by throwing an IOException. The recorder's methods may be called from
+ * different threads.
+ */
+public class FrameRecorder
+        implements Closeable
+{
+    static final int Magic = 0x444D5352;
+    static final int Version = 1;
+
+    // Payloads longer than this (in UTF-8 bytes) can't be recorded
+    static final int Max_Payload_Length = 1024;
+
+    // Largest possible read: the payload reference and payload, and the corners
+    static final int Max_Read_Size = 5 + 5 + Max_Payload_Length + TrackStore.Corner_Stride * 5;
+
+    private static final int Buffer_Size = 64 * 1024;
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate( Buffer_Size );
+
+    // Frames are encoded here first so their length can be written ahead of them. The buffer
+    // grows to fit the largest frame.
+    private ByteBuffer mFrame = ByteBuffer.allocate( 4 * 1024 );
+
+    // Index of each payload recorded so far, by representation
+    private final Map<String, Integer> mPayloads = new HashMap<>();
+
+    // Payloads first seen in the frame being encoded. These are only added to mPayloads once the
+    // frame has been written, so a frame that isn't written doesn't leave indexes behind that a
+    // reader of the recording never saw.
+    private final Map<String, Integer> mFramePayloads = new HashMap<>();
+
+    private long mPreviousTime = 0;
+    private long mFrameCount = 0;
+    private long mSkippedCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Create a recorder and write the recording header.
+     * @param out Destination stream. The stream is closed when the recorder is closed.
+     */
+    public FrameRecorder( @NonNull OutputStream out )
+    {
+        this( Channels.newChannel( out ) );
+    }
+
+    /**
+     * Create a recorder and write the recording header.
+     * @param channel Destination channel. The channel is closed when the recorder is closed.
+     */
+    public FrameRecorder( @NonNull WritableByteChannel channel )
+    {
+        mChannel = channel;
+
+        mBuffer.putInt( Magic );
+        mBuffer.putInt( Version );
+    }
+
+    /**
+     * Record the reads for a frame. Frames recorded after the recorder is closed are ignored.
+     * @param captureTime Time the frame was captured in nanoseconds
+     * @param reads       Reads for the frame, as returned by ReaderResult.getMetadataForAllPayloads().
+     *                    May be null if the frame had no reads.
+     * @param rotation    Image rotation passed to ReaderResultCache.addReadRecord() for the reads
+     */
+    public synchronized void recordFrame( long captureTime, @Nullable Map<Payload, List<DataDictionary>> reads,
+                                          int rotation ) throws IOException
+    {
+        if ( mClosed )
+            return;
+
+        mFrame.clear();
+        mFramePayloads.clear();
+
+        SessionExporter.putVarint( mFrame, SessionExporter.zigZag( captureTime - mPreviousTime ) );
+        SessionExporter.putVarint( mFrame, rotation );
+
+        // The read count is filled in once the reads have been written
+        int countPosition = mFrame.position();
+        mFrame.putInt( 0 );
+
+        int count = 0;
+
+        if ( reads != null )
+        {
+            for ( Map.Entry<Payload, List<DataDictionary>> entry : reads.entrySet() )
+            {
+                List<DataDictionary> metadataList = entry.getValue();
+
+                for ( int i = 0; i < metadataList.size(); i++ )
+                {
+                    if ( putRead( entry.getKey(), metadataList.get( i ) ) )
+                        count++;
+                }
+            }
+        }
+
+        // The count is written as a fixed four byte varint so it fits the space reserved for it
+        mFrame.put( countPosition, (byte) ( ( count & 0x7F ) | 0x80 ) );
+        mFrame.put( countPosition + 1, (byte) ( ( ( count >>> 7 ) & 0x7F ) | 0x80 ) );
+        mFrame.put( countPosition + 2, (byte) ( ( ( count >>> 14 ) & 0x7F ) | 0x80 ) );
+        mFrame.put( countPosition + 3, (byte) ( ( count >>> 21 ) & 0x7F ) );
+
+        mFrame.flip();
+
+        if ( mBuffer.remaining() < 5 + mFrame.remaining() )
+            flush();
+
+        SessionExporter.putVarint( mBuffer, mFrame.remaining() );
+
+        if ( mFrame.remaining() <= mBuffer.remaining() )
+            mBuffer.put( mFrame );
+        else
+        {
+            // Frames larger than the buffer are written directly
+            flush();
+
+            while ( mFrame.hasRemaining() )
+                mChannel.write( mFrame );
+        }
+
+        mPayloads.putAll( mFramePayloads );
+        mFramePayloads.clear();
+
+        mPreviousTime = captureTime;
+        mFrameCount++;
+    }
+
+    /**
+     * Get the number of frames recorded.
+     * @return Frame count
+     */
+    public synchronized long getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+    /**
+     * Get the number of reads skipped because their payload was too long to record.
+     * @return Skipped read count
+     */
+    public synchronized long getSkippedCount()
+    {
+        return mSkippedCount;
+    }
+
+    /**
+     * Write any buffered frames to the destination.
+     */
+    public synchronized void flush() throws IOException
+    {
+        mBuffer.flip();
+
+        while ( mBuffer.hasRemaining() )
+            mChannel.write( mBuffer );
+
+        mBuffer.clear();
+    }
+
+    /**
+     * Write any buffered frames and close the destination.
+     * @throws IOException if the frames can't be written or any reads were skipped.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if ( mClosed )
+            return;
+
+        mClosed = true;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            mChannel.close();
+        }
+
+        if ( mSkippedCount > 0 )
+            throw new IOException( "Reads skipped because a payload was longer than " + Max_Payload_Length +
+                                   " bytes: " + mSkippedCount );
+    }
+
+    // Adds a read to the frame buffer. Returns false if the read has no read region or its payload
+    // is too long to record.
+    private boolean putRead( @NonNull Payload payload, @NonNull DataDictionary metadata )
+    {
+        Object value = metadata.getValue( DataDictionary.ReadRegion );
+
+        if ( value == null )
+            return false;
+
+        @SuppressWarnings( "unchecked" )
+        List<Point> points = (List<Point>) value;
+
+        if ( points.size() < TrackStore.Corner_Count )
+            return false;
+
+        if ( mFrame.remaining() < Max_Read_Size )
+        {
+            ByteBuffer frame = ByteBuffer.allocate( mFrame.capacity() * 2 );
+            mFrame.flip();
+            frame.put( mFrame );
+            mFrame = frame;
+        }
+
+        String representation = payload.getRepresentation();
+        Integer index = mPayloads.get( representation );
+
+        if ( index == null )
+            index = mFramePayloads.get( representation );
+
+        if ( index != null )
+            SessionExporter.putVarint( mFrame, index + 1 );
+        else
+        {
+            byte[] bytes = representation.getBytes( StandardCharsets.UTF_8 );
+
+            if ( bytes.length > Max_Payload_Length )
+            {
+                mSkippedCount++;
+                return false;
+            }
+
+            mFramePayloads.put( representation, mPayloads.size() + mFramePayloads.size() );
+
+            SessionExporter.putVarint( mFrame, 0 );
+            SessionExporter.putVarint( mFrame, bytes.length );
+            mFrame.put( bytes );
+        }
+
+        int previousX = 0;
+        int previousY = 0;
+
+        for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+        {
+            Point pt = points.get( i );
+
+            SessionExporter.putVarint( mFrame, SessionExporter.zigZag( pt.x - previousX ) );
+            SessionExporter.putVarint( mFrame, SessionExporter.zigZag( pt.y - previousY ) );
+
+            previousX = pt.x;
+            previousY = pt.y;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,255 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.payload.Payload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads recordings written by FrameRecorder. Frames are read one at a time with next(), and the
+ * reads of the current frame are available through the accessors until the next call. A frame
+ * that was cut off at the end of the recording is treated as the end of the recording. The
+ * reader uses no Android classes so recordings can be replayed on a plain JVM.
+ */
+public class FrameRecordingReader
+        implements Closeable
+{
+    private static final int Buffer_Size = 64 * 1024;
+
+    private final ReadableByteChannel mChannel;
+    private ByteBuffer mBuffer = ByteBuffer.allocate( Buffer_Size );
+    private boolean mEndOfStream = false;
+
+    // Payloads in the order they were first recorded
+    private final List<Payload> mPayloads = new ArrayList<>();
+
+    private long mCaptureTime = 0;
+    private int mRotation;
+    private int mReadCount;
+    private Payload[] mReadPayloads = new Payload[64];
+    private int[] mCorners = new int[64 * TrackStore.Corner_Stride];
+
+    /**
+     * Create a reader and read the recording header.
+     * @param in Source stream. The stream is closed when the reader is closed.
+     * @throws IOException if the stream isn't a frame recording
+     */
+    public FrameRecordingReader( @NonNull InputStream in ) throws IOException
+    {
+        this( Channels.newChannel( in ) );
+    }
+
+    /**
+     * Create a reader and read the recording header.
+     * @param channel Source channel. The channel is closed when the reader is closed.
+     * @throws IOException if the channel isn't a frame recording
+     */
+    public FrameRecordingReader( @NonNull ReadableByteChannel channel ) throws IOException
+    {
+        mChannel = channel;
+        mBuffer.flip();
+
+        if ( !fill( 8 ) || mBuffer.getInt() != FrameRecorder.Magic )
+            throw new IOException( "Not a frame recording" );
+
+        int version = mBuffer.getInt();
+        if ( version != FrameRecorder.Version )
+            throw new IOException( "Unsupported frame recording version " + version );
+    }
+
+    /**
+     * Read the next frame.
+     * @return true if a frame was read, false at the end of the recording.
+     * @throws IOException if the recording is damaged
+     */
+    public boolean next() throws IOException
+    {
+        // The frame length is at most five bytes
+        if ( !fill( 1 ) )
+            return false;
+
+        fill( 5 );
+
+        int length = (int) getVarint();
+
+        if ( length <= 0 )
+            throw new IOException( "Invalid frame length " + length );
+
+        if ( !fill( length ) )
+            return false;
+
+        int end = mBuffer.position() + length;
+
+        mCaptureTime += unZigZag( getVarint() );
+        mRotation = (int) getVarint();
+
+        int count = (int) getVarint();
+
+        if ( count < 0 || count > length )
+            throw new IOException( "Invalid read count " + count );
+
+        if ( count > mReadPayloads.length )
+        {
+            mReadPayloads = new Payload[count];
+            mCorners = new int[count * TrackStore.Corner_Stride];
+        }
+
+        for ( int r = 0; r < count; r++ )
+        {
+            int index = (int) getVarint();
+
+            if ( index == 0 )
+            {
+                mPayloads.add( new Payload( getString() ) );
+                index = mPayloads.size();
+            }
+
+            if ( index > mPayloads.size() )
+                throw new IOException( "Invalid payload index " + index );
+
+            mReadPayloads[r] = mPayloads.get( index - 1 );
+
+            int x = 0;
+            int y = 0;
+
+            for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+            {
+                x += (int) unZigZag( getVarint() );
+                y += (int) unZigZag( getVarint() );
+
+                mCorners[r * TrackStore.Corner_Stride + i * 2] = x;
+                mCorners[r * TrackStore.Corner_Stride + i * 2 + 1] = y;
+            }
+        }
+
+        if ( mBuffer.position() != end )
+            throw new IOException( "Invalid frame" );
+
+        mReadCount = count;
+
+        return true;
+    }
+
+    /**
+     * Get the time the current frame was captured.
+     * @return Capture time in nanoseconds
+     */
+    public long getCaptureTime()
+    {
+        return mCaptureTime;
+    }
+
+    /**
+     * Get the image rotation recorded for the current frame's reads.
+     * @return Rotation in degrees
+     */
+    public int getRotation()
+    {
+        return mRotation;
+    }
+
+    public int getReadCount()
+    {
+        return mReadCount;
+    }
+
+    @NonNull
+    public Payload getPayload( int read )
+    {
+        return mReadPayloads[read];
+    }
+
+    /**
+     * Copy the corners of a read's region, before rotation, into an array.
+     * @param read   Index of the read in the current frame
+     * @param out    Destination array
+     * @param offset Offset of the first corner in the array
+     */
+    public void getCorners( int read, @NonNull int[] out, int offset )
+    {
+        System.arraycopy( mCorners, read * TrackStore.Corner_Stride, out, offset, TrackStore.Corner_Stride );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mChannel.close();
+    }
+
+    /**
+     * Make sure at least count bytes are available in the buffer, growing it if necessary.
+     * @return false if the end of the stream was reached first.
+     */
+    private boolean fill( int count ) throws IOException
+    {
+        if ( mBuffer.remaining() >= count )
+            return true;
+
+        if ( count > mBuffer.capacity() )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( count );
+            buffer.put( mBuffer );
+            mBuffer = buffer;
+        }
+        else
+            mBuffer.compact();
+
+        while ( mBuffer.position() < count && !mEndOfStream )
+        {
+            if ( mChannel.read( mBuffer ) < 0 )
+                mEndOfStream = true;
+        }
+
+        mBuffer.flip();
+
+        return mBuffer.remaining() >= count;
+    }
+
+    private long getVarint() throws IOException
+    {
+        long value = 0;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            if ( !mBuffer.hasRemaining() )
+                throw new IOException( "Truncated value" );
+
+            byte b = mBuffer.get();
+            value |= (long) ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+                return value;
+        }
+
+        throw new IOException( "Invalid value" );
+    }
+
+    @NonNull
+    private String getString() throws IOException
+    {
+        int length = (int) getVarint();
+
+        if ( length < 0 || length > mBuffer.remaining() )
+            throw new IOException( "Invalid string length " + length );
+
+        String value = new String( mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), length,
+                                   StandardCharsets.UTF_8 );
+        mBuffer.position( mBuffer.position() + length );
+
+        return value;
+    }
+
+    private static long unZigZag( long value )
+    {
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+}
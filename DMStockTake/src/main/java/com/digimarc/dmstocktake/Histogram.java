@@ -0,0 +1,225 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a non-negative value, such as a time in nanoseconds or a count,
+ * with a fixed relative precision. Values below 64 are counted exactly. Larger values are counted
+ * in buckets that split each power of two into 32 equal steps, so a value is known to within
+ * about 3% however large it is. The buckets are fixed when the histogram is created, so
+ * recording a value never allocates.
+ * <p>
+ * Values may be recorded and read from any thread without locking. A reading taken while values
+ * are being recorded may include some of a value's fields (its count, say) and not yet others.
+ */
+public class Histogram
+{
+    private static final int Sub_Bucket_Bits = 5;
+    private static final int Sub_Bucket_Count = 1 << Sub_Bucket_Bits;
+
+    // Values below this are counted exactly, one bucket each
+    private static final int Exact_Limit = 2 * Sub_Bucket_Count;
+
+    private final String mName;
+    private final String mUnit;
+    private final long mMaxValue;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong( Long.MAX_VALUE );
+    private final AtomicLong mMax = new AtomicLong( Long.MIN_VALUE );
+
+    /**
+     * Create a histogram.
+     * @param name     Name the histogram is reported under
+     * @param unit     Unit of the recorded values, e.g. "ns"
+     * @param maxValue Largest value that can be told apart. Larger values are counted as this
+     *                 value, though the largest value recorded is still reported exactly.
+     */
+    public Histogram( @NonNull String name, @NonNull String unit, long maxValue )
+    {
+        mName = name;
+        mUnit = unit;
+        mMaxValue = Math.max( maxValue, Exact_Limit );
+        mCounts = new AtomicLongArray( bucketIndex( mMaxValue ) + 1 );
+    }
+
+    @NonNull
+    public String getName()
+    {
+        return mName;
+    }
+
+    @NonNull
+    public String getUnit()
+    {
+        return mUnit;
+    }
+
+    /**
+     * Record a value. Negative values are counted as 0.
+     * @param value Value to record
+     */
+    public void record( long value )
+    {
+        if ( value < 0 )
+            value = 0;
+
+        mCounts.incrementAndGet( bucketIndex( Math.min( value, mMaxValue ) ) );
+        mSum.addAndGet( value );
+
+        long min = mMin.get();
+        while ( value < min && !mMin.compareAndSet( min, value ) )
+            min = mMin.get();
+
+        long max = mMax.get();
+        while ( value > max && !mMax.compareAndSet( max, value ) )
+            max = mMax.get();
+
+        // The count is updated last, so a reader that sees a count also sees its value
+        mTotalCount.incrementAndGet();
+    }
+
+    public long getCount()
+    {
+        return mTotalCount.get();
+    }
+
+    /**
+     * Get the smallest value recorded.
+     * @return Smallest value, or 0 if nothing has been recorded.
+     */
+    public long getMin()
+    {
+        long min = mMin.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * Get the largest value recorded.
+     * @return Largest value, or 0 if nothing has been recorded.
+     */
+    public long getMax()
+    {
+        long max = mMax.get();
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     * @return Mean value, or 0 if nothing has been recorded.
+     */
+    public double getMean()
+    {
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Get the value that the given percentage of the recorded values are at or below.
+     * @param percentile Percentage between 0 and 100
+     * @return The largest value in the bucket that holds the percentile, limited to the largest
+     *         value recorded, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile( double percentile )
+    {
+        long count = 0;
+
+        for ( int i = 0; i < mCounts.length(); i++ )
+            count += mCounts.get( i );
+
+        if ( count == 0 )
+            return 0;
+
+        long target = Math.max( 1, (long) Math.ceil( Math.min( percentile, 100.0 ) / 100.0 * count ) );
+        long seen = 0;
+
+        for ( int i = 0; i < mCounts.length(); i++ )
+        {
+            seen += mCounts.get( i );
+
+            if ( seen >= target )
+                return Math.min( highestEquivalentValue( i ), getMax() );
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Get the number of buckets. The contents of each bucket can be read with getCountAtBucket()
+     * and getBucketValue().
+     * @return Number of buckets
+     */
+    public int getBucketCount()
+    {
+        return mCounts.length();
+    }
+
+    public long getCountAtBucket( int bucket )
+    {
+        return mCounts.get( bucket );
+    }
+
+    /**
+     * Get the smallest value counted in a bucket.
+     * @param bucket Bucket index
+     * @return Lowest value of the bucket
+     */
+    public long getBucketValue( int bucket )
+    {
+        return lowestEquivalentValue( bucket );
+    }
+
+    /**
+     * Discard the recorded values. Values recorded while the histogram is being reset may be
+     * partly discarded.
+     */
+    public void reset()
+    {
+        mTotalCount.set( 0 );
+
+        for ( int i = 0; i < mCounts.length(); i++ )
+            mCounts.set( i, 0 );
+
+        mSum.set( 0 );
+        mMin.set( Long.MAX_VALUE );
+        mMax.set( Long.MIN_VALUE );
+    }
+
+    // Values below Exact_Limit have a bucket each. Above that, each power of two from
+    // 2^(Sub_Bucket_Bits + 1) up has Sub_Bucket_Count buckets.
+    static int bucketIndex( long value )
+    {
+        if ( value < Exact_Limit )
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros( value ) - Sub_Bucket_Bits;
+
+        return Exact_Limit + ( shift - 1 ) * Sub_Bucket_Count + (int) ( value >>> shift ) - Sub_Bucket_Count;
+    }
+
+    static long lowestEquivalentValue( int bucket )
+    {
+        if ( bucket < Exact_Limit )
+            return bucket;
+
+        int shift = ( bucket - Exact_Limit ) / Sub_Bucket_Count + 1;
+        long subBucket = ( bucket - Exact_Limit ) % Sub_Bucket_Count + Sub_Bucket_Count;
+
+        return subBucket << shift;
+    }
+
+    static long highestEquivalentValue( int bucket )
+    {
+        if ( bucket < Exact_Limit )
+            return bucket;
+
+        int shift = ( bucket - Exact_Limit ) / Sub_Bucket_Count + 1;
+
+        return lowestEquivalentValue( bucket ) + ( 1L << shift ) - 1;
+    }
+}
@@ -59,6 +59,10 @@ public class LocationView
     private final Paint mTextPaint = new Paint();
     private List<DisplayData> mDataList;
     private final Matrix mTransform = new Matrix();
+
+    // Display data may be drawn more than once, so paths are transformed into this path rather
+    // than in place
+    private final Path mDrawPath = new Path();
     private RectF mImageBounds;
     private Point mFrameSize;
     private int mCameraRotation;
@@ -159,8 +163,8 @@ public class LocationView
                 }
 
                 for (DisplayData data : mDataList) {
-                    data.mPath.transform( mTransform );
-                    canvas.drawPath(data.mPath, mRectPaint);
+                    data.mPath.transform( mTransform, mDrawPath );
+                    canvas.drawPath( mDrawPath, mRectPaint );
 
                     RawPayload payload = new RawPayload( data.mValue );
 
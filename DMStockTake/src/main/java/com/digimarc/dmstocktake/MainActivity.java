@@ -18,12 +18,17 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.ScrollView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.digimarc.capture.camera.CameraConfigurationListener;
@@ -47,10 +52,19 @@ import com.digimarc.dms.readers.image.DetectionRegion;
 import com.digimarc.dms.readers.image.PreviewDetectionRegion;
 import com.digimarc.dms.readers.image.VideoCaptureReader;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -68,6 +82,33 @@ public class MainActivity extends AppCompatActivity
 
     private static final String Default_Distance = ReaderOptions.Distance_Far;
 
+    // Distance setting that chooses the read distance from the sizes of the codes being read
+    private static final String Auto_Distance = "3";
+
+    // Overlay smoothing: 1 Hz while still, following moves of a few hundred pixels a second closely,
+    // and outlines that move by a pixel aren't redrawn
+    private static final float Smoothing_Cutoff = 1f;
+    private static final float Smoothing_Beta = 0.01f;
+    private static final int Stationary_Threshold = 1;
+
+    // Frames with this many reads are matched on up to four threads
+    private static final int Max_Matching_Threads = 4;
+    private static final int Parallel_Matching_Threshold = 128;
+
+    // Decode every frame (up to 30 fps) while codes are in view, backing off to 3 fps after 10
+    // empty frames, and spend at most half a core decoding
+    private static final float Decode_Max_Rate = 30f;
+    private static final float Decode_Floor_Rate = 3f;
+    private static final int Decode_Idle_Frames = 10;
+    private static final float Decode_Cpu_Budget = 0.5f;
+
+    // Frames handed to the reader whose results are still to come. Older frames are forgotten.
+    private static final int Max_Pending_Frames = 4;
+
+    // Camera frames are copied into these buffers: one being decoded, one waiting and one being
+    // filled
+    private static final int Captured_Frame_Count = 3;
+
     private static final int REQUEST_PERMISSION = 1;
     private static final int REQUEST_PREFERENCES = 2;
 
@@ -79,58 +120,327 @@ public class MainActivity extends AppCompatActivity
     private boolean mMessageShown = false;
 
     private String mReadDistance = Default_Distance;
+    private volatile boolean mAutoDistance = false;
+    private boolean mAdaptiveTracking = false;
 
     private RegionView mRegionView;
 
     private CameraHelper mCamera;
-    private int mOrientation;
-    private int mCameraRotation;
+    // Set on the UI thread and read on the thread that processes frames
+    private volatile int mOrientation;
+    private volatile int mCameraRotation;
 
     private CameraSurfaceView mCameraSurface;
 
-    private VideoCaptureReader mCameraReader;
+    // Read on the decode worker's thread
+    private volatile VideoCaptureReader mCameraReader;
+
+    // Narrows the reader's symbologies to the ones being read. These are set up before the
+    // reader, and mSymbologyMask (the mask the reader is using) is only used by the decode worker
+    // after that.
+    private SymbologySelector mSymbologySelector;
+    private int mSymbologyMask;
 
     private LocationView mLocationView;
-    private final List<LocationView.DisplayData> mLocationData = new ArrayList<>();
 
-    private final ReaderResultCache mCache = new ReaderResultCache();
+    // Display data for each track, keyed by track ID. This is kept up to date by mTrackListener
+    // on the thread that processes frames, and a new list is given to mLocationView only in
+    // frames where a track started, moved or was lost.
+    private final Map<Integer, LocationView.DisplayData> mLocationData = new LinkedHashMap<>();
+    private boolean mLocationChanged = false;
+
+    // Newest list for mLocationView, waiting to be picked up by mApplyDisplayData. Lists that are
+    // replaced before the UI thread gets to them are never drawn.
+    private final AtomicReference<List<LocationView.DisplayData>> mPendingDisplayData =
+            new AtomicReference<>();
+
+    // Hands the newest display data to mLocationView on the UI thread
+    private final Runnable mApplyDisplayData = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            List<LocationView.DisplayData> data = mPendingDisplayData.getAndSet( null );
+
+            if ( data != null )
+                mLocationView.setDisplayData( data );
+        }
+    };
+
+    private final TrackListener mTrackListener = new TrackListener()
+    {
+        @Override
+        public void onTrackStarted( @NonNull TrackEvent event )
+        {
+            mLocationData.put( event.getId(), createDisplayData( event.getTrack() ) );
+            mLocationChanged = true;
+        }
+
+        @Override
+        public void onTrackUpdated( @NonNull TrackEvent event )
+        {
+            mLocationData.put( event.getId(), createDisplayData( event.getTrack() ) );
+            mLocationChanged = true;
+        }
+
+        @Override
+        public void onTrackLost( @NonNull TrackEvent event )
+        {
+            mLocationData.remove( event.getId() );
+            mLocationChanged = true;
+        }
+    };
+
+    private ReaderResultCache mCache;
+
+    // Counts of the items seen during the stock-take
+    private final SessionAggregator mSession = new SessionAggregator();
+
+    // Timings and track counts for each frame, shown by the Pipeline Metrics menu item
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+
+    // Time spent converting track outlines to paths in the current frame. The conversions are
+    // made by mTrackListener during endFrame(), so this is left out of the endFrame() timing.
+    private long mPathConversionTime;
+
+    // Journal that preserves the session if the app is killed
+    private SessionJournal mJournal;
+
+    // Recorder for the reads of each frame, while recording is on
+    private volatile FrameRecorder mRecorder;
+
+    // Times (SystemClock.elapsedRealtimeNanos) that the frames handed to the reader were delivered
+    // by the camera, oldest first, for frames whose results haven't been reported yet. The reader
+    // reports each frame it processes once, in order, so each report takes the oldest time. This
+    // is used to timestamp the results for each frame in the cache. Guarded by itself.
+    private final long[] mPendingCaptureTimes = new long[Max_Pending_Frames];
+    private int mPendingStart = 0;
+    private int mPendingCount = 0;
+    private long mLastCaptureTime = 0;
 
     private final Paint mPaint = new Paint();
 
+    // Detection region that follows the tracked codes, used when the last read region is selected
+    private final RegionFollower mFollower = new RegionFollower();
+    private volatile boolean mFollowRegion = false;
+    private final float[] mFollowCoordinates = new float[4];
+
+    // Applies the follower's region to the reader on the UI thread
+    private final Runnable mApplyFollowRegion = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if ( !mFollowRegion )
+                return;
+
+            mFollower.getRegion( mFollowCoordinates );
+            setDetectionRegion( new RectF( mFollowCoordinates[0], mFollowCoordinates[1],
+                                           mFollowCoordinates[2], mFollowCoordinates[3] ) );
+        }
+    };
+
+    // Index of the read region in mRegions. One past the last region selects a region that
+    // follows the tracked codes.
     private int mCurrentRegionIndex = 0;
     private final List<RectF> mRegions = Arrays.asList( new RectF( 0f, 0f, 1f, 1f),
                                                         new RectF( 0.1f, 0.33f, 0.9f, 0.66f ),
                                                         new RectF( 0.2f, 0.4f, 0.8f, 0.6f) );
 
+    /**
+     * The reads of a frame, on their way from the reader's callback to the result pipeline.
+     */
+    private static final class FrameResults
+    {
+        final long mCaptureTime;
+        final long mSubmitTime;
+
+        // Time from the capture of the frame to its results (nanoseconds)
+        final long mDecodeLatency;
+
+        final Map<Payload, List<DataDictionary>> mReads;
+
+        FrameResults( long captureTime, @Nullable Map<Payload, List<DataDictionary>> reads )
+        {
+            mCaptureTime = captureTime;
+            mSubmitTime = System.nanoTime();
+            mDecodeLatency = SystemClock.elapsedRealtimeNanos() - captureTime;
+            mReads = reads;
+        }
+    }
+
+    // Processes read results on its own thread so the reader's callback returns straight away.
+    // If results arrive faster than they're processed only the newest are kept.
+    private final PipelineStage<FrameResults> mResultStage = new PipelineStage<>( "ResultPipeline",
+            new PipelineStage.Handler<FrameResults>()
+            {
+                @Override
+                public void process( @NonNull FrameResults results )
+                {
+                    parseImageResults( results );
+                }
+            } );
+
     private final ResultListener mResultListener = new ResultListener()
     {
         @Override
         public void onReaderResult(@NonNull ReaderResult result, @NonNull BaseReader.ResultType resultType) {
             if ( resultType == BaseReader.ResultType.Image )
-                parseImageResults( result );
+                mResultStage.submit( new FrameResults( takePendingCaptureTime(), result.getMetadataForAllPayloads() ) );
         }
 
         @Override
-        public void onError( @NonNull BaseReader.ReaderError errorCode,
+        public void onError( @NonNull final BaseReader.ReaderError errorCode,
                              @NonNull BaseReader.ResultType resultType )
         {
-            showMsg( "Reader Error", Manager.getDescriptionForErrorCode(errorCode) );
+            // An error reports a frame too
+            if ( resultType == BaseReader.ResultType.Image )
+                takePendingCaptureTime();
+
+            // The reader may call back on the decode worker's thread
+            runOnUiThread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    showMsg( "Reader Error", Manager.getDescriptionForErrorCode( errorCode ) );
+                }
+            } );
+        }
+    };
+
+    /**
+     * A copy of a camera frame, on its way from the camera's callback to the decode worker. The
+     * camera helper may reuse its preview buffer once onPreviewFrame() returns, so the frame is
+     * copied into a buffer owned by the CapturedFrame. CapturedFrames are recycled through
+     * mFreeFrames, and the reader is done with a frame's data once processImageFrame() returns.
+     */
+    private static final class CapturedFrame
+    {
+        private byte[] mBuffer;
+        ImageData mData;
+        long mCaptureTime;
+
+        void copyFrom( @NonNull ImageData data, long captureTime )
+        {
+            byte[] source = data.mImageData;
+
+            if ( mBuffer == null || mBuffer.length != source.length )
+                mBuffer = new byte[source.length];
+
+            System.arraycopy( source, 0, mBuffer, 0, source.length );
+
+            mData = new ImageData( mBuffer, data.mWidth, data.mHeight, data.mImageFormat );
+            mCaptureTime = captureTime;
+        }
+    }
+
+    // Captured frames that aren't being filled, waiting or decoded
+    private final ArrayBlockingQueue<CapturedFrame> mFreeFrames =
+            new ArrayBlockingQueue<>( Captured_Frame_Count );
+
+    // Decides which camera frames are decoded
+    private final DecodeGovernor mGovernor = DecodeGovernor.Builder()
+            .setMaxRate( Decode_Max_Rate )
+            .setFloorRate( Decode_Floor_Rate )
+            .setIdleFrames( Decode_Idle_Frames )
+            .setCpuBudget( Decode_Cpu_Budget )
+            .build();
+
+    // Chooses the read distance while the distance setting is Auto
+    private final DistanceSelector mDistanceSelector = new DistanceSelector( Default_Distance );
+
+    // Sends the distance chosen by mDistanceSelector to the reader on the UI thread
+    private final Runnable mApplyAutoDistance = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if ( !mAutoDistance )
+                return;
+
+            mReadDistance = mDistanceSelector.getDistance();
+            applyReaderOptions();
         }
     };
 
+    // Passes camera frames to the reader on its own thread so a slow decode doesn't hold up
+    // preview delivery. Frames that arrive while a frame is being decoded replace each other, so
+    // the next decode always gets the newest frame.
+    private final PipelineStage<CapturedFrame> mDecodeStage = new PipelineStage<>( "DecodeWorker",
+            new PipelineStage.Handler<CapturedFrame>()
+            {
+                @Override
+                public void process( @NonNull CapturedFrame frame )
+                {
+                    VideoCaptureReader reader = mCameraReader;
+
+                    if ( reader == null )
+                        return;
+
+                    long start = System.nanoTime();
+
+                    // Set while the frame's capture time is queued for results that may not come
+                    boolean pending = false;
+
+                    try
+                    {
+                        int mask = mSymbologySelector.getMask( frame.mCaptureTime );
+
+                        if ( mask != mSymbologyMask )
+                        {
+                            reader.setSymbologies( mask );
+                            mSymbologyMask = mask;
+                        }
+
+                        // The time is queued first as the reader may report the frame before
+                        // processImageFrame() returns
+                        addPendingCaptureTime( frame.mCaptureTime );
+                        pending = true;
+
+                        reader.processImageFrame( frame.mData );
+                        pending = false;
+                    }
+                    catch ( Exception e )
+                    {
+                        // The reader won't report a frame it failed to take
+                        if ( pending )
+                            removePendingCaptureTime( frame.mCaptureTime );
+
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        mFreeFrames.offer( frame );
+                    }
+
+                    mMetrics.mDecode.record( System.nanoTime() - start );
+                }
+            } );
+
     private final CameraDataListener mCameraListener = new CameraDataListener()
     {
         @Override
         public void onPreviewFrame( @NonNull ImageData data )
         {
-            try
-            {
-                mCameraReader.processImageFrame(data);
-            }
-            catch (Exception e)
-            {
-                e.printStackTrace();
-            }
+            long captureTime = SystemClock.elapsedRealtimeNanos();
+
+            if ( !mGovernor.shouldDecode( captureTime ) )
+                return;
+
+            // There's always a free frame unless the worker has stopped
+            CapturedFrame frame = mFreeFrames.poll();
+
+            if ( frame == null )
+                return;
+
+            frame.copyFrom( data, captureTime );
+
+            CapturedFrame replaced = mDecodeStage.exchange( frame );
+            mGovernor.onSubmitted( captureTime );
+
+            if ( replaced != null )
+                mFreeFrames.offer( replaced );
         }
     };
 
@@ -150,6 +460,18 @@ public class MainActivity extends AppCompatActivity
                 RectF visible = mCamera.getRectForVisibleSurface();
                 mLocationView.setScalingParameters(visible, pt, mCameraRotation, mOrientation);
 
+                // Track positions are in display orientation, so the frame's dimensions are
+                // swapped when the camera is rotated relative to the display
+                boolean rotatedCamera = mCameraRotation == 90 || mCameraRotation == 270;
+                boolean rotatedDevice = mOrientation == 90 || mOrientation == 270;
+
+                if ( rotatedCamera == rotatedDevice )
+                    mFollower.setGeometry( pt.x, pt.y, visible.width(), visible.height() );
+                else
+                    mFollower.setGeometry( pt.y, pt.x, visible.width(), visible.height() );
+
+                mDistanceSelector.setFrameSize( pt.x, pt.y );
+
                 setReadRegion();
             }
         }
@@ -198,6 +520,24 @@ public class MainActivity extends AppCompatActivity
         }
 
         loadDistanceSetting();
+        loadTrackingSetting();
+
+        mCache = new ReaderResultCache( getTrackingPolicy() );
+        mCache.addTrackListener( mTrackListener );
+        mCache.setParallelMatching( Math.min( Max_Matching_Threads, Runtime.getRuntime().availableProcessors() ),
+                                    Parallel_Matching_Threshold );
+
+        mMetrics.setGovernor( mGovernor );
+        mMetrics.addStage( mDecodeStage );
+        mMetrics.addStage( mResultStage );
+        for ( int i = 0; i < Captured_Frame_Count; i++ )
+            mFreeFrames.offer( new CapturedFrame() );
+
+        mDecodeStage.start();
+        mResultStage.start();
+
+        mJournal = new SessionJournal( getFilesDir() );
+        mJournal.start( mSession );
 
         mRegionView = findViewById( R.id.regionView );
 
@@ -239,6 +579,9 @@ public class MainActivity extends AppCompatActivity
                                                             BaseReader.ImageSymbology.Image_1D_ITF_GTIN_14,
                                                             BaseReader.ImageSymbology.Image_1D_ITF_Variable );
 
+            mSymbologySelector = new SymbologySelector( readerMask );
+            mSymbologyMask = readerMask;
+
             mCameraReader = VideoCaptureReader.Builder()
                     .setSymbologies( readerMask )
                     .setReaderOptions( options )
@@ -288,10 +631,38 @@ public class MainActivity extends AppCompatActivity
             startActivityForResult( new Intent( this, PreferenceActivity.class ),
                                     REQUEST_PREFERENCES );
         }
+        else if ( id == R.id.menu_session )
+        {
+            showMsg( "Session Summary",
+                     mSession.getPayloadCount() + " products, " +
+                     mSession.getTotalFacings() + " facings seen" );
+        }
+        else if ( id == R.id.menu_new_session )
+        {
+            mSession.clear();
+            mJournal.reset();
+        }
+        else if ( id == R.id.menu_export )
+        {
+            exportSession();
+        }
+        else if ( id == R.id.menu_metrics )
+        {
+            showMetrics();
+        }
+        else if ( id == R.id.menu_record )
+        {
+            if ( mRecorder == null )
+                startRecording();
+            else
+                stopRecording();
+
+            item.setChecked( mRecorder != null );
+        }
         else if ( id == R.id.menu_region )
         {
             mCurrentRegionIndex++;
-            if ( mCurrentRegionIndex >= mRegions.size())
+            if ( mCurrentRegionIndex > mRegions.size())
                 mCurrentRegionIndex = 0;
 
             setReadRegion();
@@ -317,15 +688,15 @@ public class MainActivity extends AppCompatActivity
             if ( changedDistance )
             {
                 loadDistanceSetting();
+                applyReaderOptions();
+            }
 
-                try
-                {
-                    mCameraReader.setReaderOptions( getReaderOptions() );
-                }
-                catch ( ReaderException e )
-                {
-                    e.printStackTrace();
-                }
+            // The cache picks up a new tracking policy at the start of its next frame
+            if ( data.getBooleanExtra( PreferenceActivity.CHANGED_TRACKING, false ) )
+            {
+                loadTrackingSetting();
+
+                mCache.setTrackingPolicy( getTrackingPolicy() );
             }
         }
 
@@ -334,6 +705,9 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     protected void onDestroy() {
+        // Finish the frame being decoded before the reader is released
+        mDecodeStage.stop();
+
         if ( mCameraReader != null )
         {
             mCameraReader.release();
@@ -346,6 +720,15 @@ public class MainActivity extends AppCompatActivity
             mCamera = null;
         }
 
+        // Finish the frame being processed before the cache and journal are shut down
+        mResultStage.stop();
+
+        mJournal.close();
+        stopRecording();
+
+        // Shuts down the matching threads
+        mCache.setParallelMatching( 1, 0 );
+
         super.onDestroy();
     }
 
@@ -355,6 +738,15 @@ public class MainActivity extends AppCompatActivity
 
         String distance = sharedPrefs.getString( PreferenceActivity.ENTRY_DISTANCE, "1" );
 
+        // Automatic selection starts from the distance in use and adjusts it as codes are read
+        mAutoDistance = Auto_Distance.equals( distance );
+
+        if ( mAutoDistance )
+        {
+            mDistanceSelector.reset( mReadDistance );
+            return;
+        }
+
         try
         {
             mReadDistance = DistanceOptions[Integer.parseInt( distance )];
@@ -366,10 +758,238 @@ public class MainActivity extends AppCompatActivity
 
     }
 
+    private void loadTrackingSetting()
+    {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences( this );
+
+        mAdaptiveTracking = "1".equals( sharedPrefs.getString( PreferenceActivity.ENTRY_TRACKING, "0" ) );
+    }
+
+    @NonNull
+    private TrackingPolicy getTrackingPolicy()
+    {
+        // Smooth the overlay so outlines don't jitter while the camera is still
+        TrackingPolicy.Builder builder = TrackingPolicy.Builder()
+                .setSmoothing( Smoothing_Cutoff, Smoothing_Beta )
+                .setStationaryThreshold( Stationary_Threshold );
+
+        if ( mAdaptiveTracking )
+            builder.setAdaptive();
+
+        return builder.build();
+    }
+
+    /**
+     * Export the session's items, and the trajectories of the tracks in the session journal, to
+     * the app's external files directory. The export is written on its own thread so it doesn't
+     * hold up the camera pipeline.
+     */
+    private void exportSession()
+    {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences( this );
+
+        final SessionExporter.Format format =
+                "1".equals( sharedPrefs.getString( PreferenceActivity.ENTRY_EXPORT_FORMAT, "0" ) ) ?
+                SessionExporter.Format.Binary : SessionExporter.Format.Csv;
+
+        File externalDir = getExternalFilesDir( null );
+        final File directory = externalDir != null ? externalDir : getFilesDir();
+
+        final String extension = format == SessionExporter.Format.Csv ? ".csv" : ".bin";
+        final String name = "stocktake-" + new SimpleDateFormat( "yyyyMMdd-HHmmss", Locale.US ).format( new Date() );
+
+        // Frames are timed with elapsedRealtime, which is exported as wall-clock time
+        final long timeOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+        new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                String message;
+
+                try
+                {
+                    try ( SessionExporter items = new SessionExporter(
+                            new FileOutputStream( new File( directory, name + extension ) ),
+                            format, SessionExporter.Table.Items ) )
+                    {
+                        items.setTimeOffset( timeOffset );
+                        items.writeItems( mSession );
+                    }
+
+                    try ( SessionExporter trajectory = new SessionExporter(
+                            new FileOutputStream( new File( directory, name + "-trajectory" + extension ) ),
+                            format, SessionExporter.Table.Trajectory ) )
+                    {
+                        trajectory.setTimeOffset( timeOffset );
+                        mJournal.exportTrajectory( trajectory );
+                    }
+
+                    message = "Session exported to " + directory;
+                }
+                catch ( IOException e )
+                {
+                    message = "Unable to export session: " + e.getMessage();
+                }
+
+                final String toast = message;
+
+                runOnUiThread( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Toast.makeText( MainActivity.this, toast, Toast.LENGTH_LONG ).show();
+                    }
+                } );
+            }
+        }, "SessionExport" ).start();
+    }
+
+    /**
+     * Start recording the reads of each frame to the app's external files directory. Recordings
+     * can be replayed through ReaderResultCache on a desktop JVM with the benchmark project's
+     * replay task.
+     */
+    private void startRecording()
+    {
+        File externalDir = getExternalFilesDir( null );
+        File directory = externalDir != null ? externalDir : getFilesDir();
+        String name = "frames-" + new SimpleDateFormat( "yyyyMMdd-HHmmss", Locale.US ).format( new Date() ) + ".dmsr";
+
+        try
+        {
+            mRecorder = new FrameRecorder( new FileOutputStream( new File( directory, name ) ) );
+        }
+        catch ( IOException e )
+        {
+            Toast.makeText( this, "Unable to start recording: " + e.getMessage(), Toast.LENGTH_LONG ).show();
+        }
+    }
+
+    private void stopRecording()
+    {
+        FrameRecorder recorder = mRecorder;
+
+        if ( recorder == null )
+            return;
+
+        mRecorder = null;
+
+        try
+        {
+            recorder.close();
+        }
+        catch ( IOException e )
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Show a summary of the pipeline metrics. The metrics can be reset from the dialog or written
+     * to the app's external files directory as JSON.
+     */
+    private void showMetrics()
+    {
+        TextView text = new TextView( this );
+        text.setTypeface( Typeface.MONOSPACE );
+        text.setTextSize( 10f );
+        text.setText( mMetrics.getSummary() );
+
+        int padding = (int) ( 16 * getResources().getDisplayMetrics().density );
+        text.setPadding( padding, padding, padding, 0 );
+
+        ScrollView scroll = new ScrollView( this );
+        scroll.addView( text );
+
+        new AlertDialog.Builder( this )
+                .setTitle( "Pipeline Metrics" )
+                .setView( scroll )
+                .setPositiveButton( "Dump JSON", new DialogInterface.OnClickListener()
+                {
+                    public void onClick( DialogInterface dialog, int id )
+                    {
+                        dumpMetrics();
+                    }
+                } )
+                .setNeutralButton( "Reset", new DialogInterface.OnClickListener()
+                {
+                    public void onClick( DialogInterface dialog, int id )
+                    {
+                        mMetrics.reset();
+                    }
+                } )
+                .setNegativeButton( "Close", null )
+                .show();
+    }
+
+    /**
+     * Write the pipeline metrics as JSON to the app's external files directory, on its own thread.
+     */
+    private void dumpMetrics()
+    {
+        File externalDir = getExternalFilesDir( null );
+        final File directory = externalDir != null ? externalDir : getFilesDir();
+        final String name = "metrics-" + new SimpleDateFormat( "yyyyMMdd-HHmmss", Locale.US ).format( new Date() ) + ".json";
+        final String device = Build.MANUFACTURER + " " + Build.MODEL + " (Android " + Build.VERSION.RELEASE + ")";
+
+        new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                String message;
+
+                try ( FileOutputStream out = new FileOutputStream( new File( directory, name ) ) )
+                {
+                    mMetrics.writeJson( out, device );
+
+                    message = "Metrics written to " + directory;
+                }
+                catch ( IOException e )
+                {
+                    message = "Unable to write metrics: " + e.getMessage();
+                }
+
+                final String toast = message;
+
+                runOnUiThread( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Toast.makeText( MainActivity.this, toast, Toast.LENGTH_LONG ).show();
+                    }
+                } );
+            }
+        }, "MetricsDump" ).start();
+    }
+
     private void setReadRegion()
     {
-        RectF frameReadRegion = new RectF(mRegions.get(mCurrentRegionIndex));
+        mFollowRegion = mCurrentRegionIndex == mRegions.size();
+
+        RectF frameReadRegion;
+
+        if ( mFollowRegion )
+        {
+            // The region following the codes isn't shown, as it changes too often
+            mFollower.reset();
+            frameReadRegion = new RectF( 0f, 0f, 1f, 1f );
+        }
+        else
+            frameReadRegion = new RectF(mRegions.get(mCurrentRegionIndex));
+
         mRegionView.setRegion( frameReadRegion );
+        setDetectionRegion( frameReadRegion );
+    }
+
+    private void setDetectionRegion( @NonNull RectF frameReadRegion )
+    {
+        if ( mCamera == null )
+            return;
 
         RectF visibleRegion = mCamera.getRectForVisibleSurface();
 
@@ -419,6 +1039,68 @@ public class MainActivity extends AppCompatActivity
             mCameraPermissionFailed = true;
     }
 
+    private void addPendingCaptureTime( long captureTime )
+    {
+        synchronized ( mPendingCaptureTimes )
+        {
+            // If the reader hasn't reported the oldest frames by now it isn't going to
+            if ( mPendingCount == Max_Pending_Frames )
+            {
+                mPendingStart = ( mPendingStart + 1 ) % Max_Pending_Frames;
+                mPendingCount--;
+            }
+
+            mPendingCaptureTimes[( mPendingStart + mPendingCount ) % Max_Pending_Frames] = captureTime;
+            mPendingCount++;
+            mLastCaptureTime = captureTime;
+        }
+    }
+
+    // Withdraws the capture time of a frame the reader failed to process, unless its results have
+    // already been reported
+    private void removePendingCaptureTime( long captureTime )
+    {
+        synchronized ( mPendingCaptureTimes )
+        {
+            int newest = ( mPendingStart + mPendingCount - 1 ) % Max_Pending_Frames;
+
+            if ( mPendingCount > 0 && mPendingCaptureTimes[newest] == captureTime )
+                mPendingCount--;
+        }
+    }
+
+    // Returns the capture time of the oldest frame whose results haven't been reported, or of the
+    // newest frame if none are waiting
+    private long takePendingCaptureTime()
+    {
+        synchronized ( mPendingCaptureTimes )
+        {
+            if ( mPendingCount == 0 )
+                return mLastCaptureTime;
+
+            long captureTime = mPendingCaptureTimes[mPendingStart];
+            mPendingStart = ( mPendingStart + 1 ) % Max_Pending_Frames;
+            mPendingCount--;
+
+            return captureTime;
+        }
+    }
+
+    private void applyReaderOptions()
+    {
+        if ( mCameraReader == null )
+            return;
+
+        try
+        {
+            mCameraReader.setReaderOptions( getReaderOptions() );
+        }
+        catch ( ReaderException e )
+        {
+            e.printStackTrace();
+        }
+    }
+
     private ReaderOptions getReaderOptions()
     {
         ReaderOptions options = new ReaderOptions();
@@ -435,47 +1117,116 @@ public class MainActivity extends AppCompatActivity
     }
 
     /**
-     * Parses the result data from an image reader, either synchronous or asynchronous. New read
-     * results will be resolved and also displayed via a toast. The spinner will be shown during
-     * resolving.
-     * @param readerResult List of read results.
+     * Parses the result data from an image reader, either synchronous or asynchronous. This is
+     * called on the result pipeline's thread.
+     * @param results Read results for a frame.
      */
-    private void parseImageResults(ReaderResult readerResult)
+    private void parseImageResults( @NonNull FrameResults results )
     {
-        Map<Payload, List<DataDictionary>> metadataForPayloads = readerResult.getMetadataForAllPayloads();
+        long frameStart = System.nanoTime();
+        mMetrics.mResultWait.record( frameStart - results.mSubmitTime );
+
+        // The governor's CPU budget is based on the whole time the reader took over the frame,
+        // including any part of the decode done after processImageFrame() returned
+        mGovernor.onDecoded( results.mDecodeLatency );
+
+        Map<Payload, List<DataDictionary>> metadataForPayloads = results.mReads;
+
+        // Set up the result cache for processing a new frame. Staleness is measured from when the
+        // frame was delivered by the camera rather than from when its results arrived.
+        long start = System.nanoTime();
+        mCache.startFrame( results.mCaptureTime );
 
-        // Set up the result cache for processing a new frame
-        mCache.startFrame();
+        long end = System.nanoTime();
+        mMetrics.mStartFrame.record( end - start );
+        start = end;
 
-        mLocationData.clear();
+        int rotation = (mCameraRotation - mOrientation + 360) % 360;
 
         if ( metadataForPayloads != null )
         {
             // Step through read data and add payloads to result cache
-            int rotation = (mCameraRotation - mOrientation + 360) % 360;
 
             for ( Map.Entry<Payload, List<DataDictionary>> entry : metadataForPayloads.entrySet() )
             {
                 List<DataDictionary> metadataList = entry.getValue();
 
+                mSymbologySelector.onRead( entry.getKey(), results.mCaptureTime );
+
                 for ( DataDictionary metadata : metadataList )
                 {
                     mCache.addReadRecord( entry.getKey(), metadata, rotation );
+
+                    if ( mAutoDistance )
+                        mDistanceSelector.addRead( metadata );
                 }
             }
         }
 
+        end = System.nanoTime();
+        mMetrics.mAddReads.record( end - start );
+        start = end;
+
+        mPathConversionTime = 0;
         mCache.endFrame();
 
-        for ( ReaderResultCache.ReadData data : mCache.getCurrentResults() ) {
+        end = System.nanoTime();
+        mMetrics.mEndFrame.record( end - start - mPathConversionTime );
+        mMetrics.mPathConversion.record( mPathConversionTime );
+        mMetrics.recordFrame( mCache );
+
+        // Keep decoding at full rate while there are codes in view
+        mGovernor.onResults( mCache.getFrameReadCount() > 0 || !mCache.getCurrentResults().isEmpty() );
+
+        if ( mAutoDistance && mDistanceSelector.update( mCache.getFrameTime() ) )
+            runOnUiThread( mApplyAutoDistance );
 
-            Path path = Utility.convertRegionPointsToPath( data.getRegionPoints() );
+        if ( mFollowRegion && mFollower.update( mCache, mCache.getFrameTime() ) )
+            runOnUiThread( mApplyFollowRegion );
 
-            mLocationData.add( new LocationView.DisplayData( path, data.getPayload(),
-                                                             getCenterPoint( data.getRegionPoints() ) ) );
+        mSession.update( mCache );
+        mJournal.record( mCache );
+
+        FrameRecorder recorder = mRecorder;
+
+        if ( recorder != null )
+        {
+            try
+            {
+                recorder.recordFrame( results.mCaptureTime, metadataForPayloads, rotation );
+            }
+            catch ( IOException e )
+            {
+                e.printStackTrace();
+                stopRecording();
+            }
         }
 
-        mLocationView.setDisplayData( mLocationData );
+        if ( mLocationChanged )
+        {
+            mLocationChanged = false;
+
+            // The view can only be updated on the UI thread. A runnable is only posted if the last
+            // one has already run.
+            start = System.nanoTime();
+
+            if ( mPendingDisplayData.getAndSet( new ArrayList<>( mLocationData.values() ) ) == null )
+                runOnUiThread( mApplyDisplayData );
+
+            mMetrics.mSetDisplayData.record( System.nanoTime() - start );
+        }
+
+        mMetrics.mFrame.record( System.nanoTime() - frameStart );
+    }
+
+    @NonNull
+    private LocationView.DisplayData createDisplayData( @NonNull ReaderResultCache.ReadData data )
+    {
+        long start = System.nanoTime();
+        Path path = Utility.convertRegionPointsToPath( data.getRegionPoints() );
+        mPathConversionTime += System.nanoTime() - start;
+
+        return new LocationView.DisplayData( path, data.getPayload(), getCenterPoint( data.getRegionPoints() ) );
     }
 
     private Point getCenterPoint( @NonNull List<Point> points )
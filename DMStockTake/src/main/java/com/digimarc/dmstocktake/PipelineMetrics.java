@@ -0,0 +1,288 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Registry of the histograms that describe where the time goes in each frame, from the reader's
+ * result callback to the overlay being handed its new outlines, and what the tracker did with the
+ * frame's reads. The timings cover the reader's decode of each camera frame, the wait for the
+ * pipeline thread to pick up a frame's results, each stage of parsing them (starting the cache's
+ * frame, adding the reads, ending the frame, converting the track outlines to paths and passing
+ * them to the overlay) and the whole frame. The counts cover the live, new and removed tracks and
+ * the percentage of each frame's reads that were matched to an existing track. The item counts of
+ * the pipeline stages, including the items they dropped, and the state of the decode governor are
+ * reported alongside the histograms.
+ * <p>
+ * Values are recorded on the thread that processes frames and may be read, reset or written out
+ * as JSON from any thread. Recording never locks or allocates.
+ */
+public class PipelineMetrics
+{
+    // Times are histogrammed up to 10 seconds and counts up to a million
+    private static final long Max_Time = 10_000_000_000L;
+    private static final long Max_Count = 1_000_000;
+
+    private static final double[] Percentiles = { 50, 90, 99, 99.9 };
+
+    private final List<Histogram> mHistograms = new ArrayList<>();
+    private final List<PipelineStage<?>> mStages = new ArrayList<>();
+    private DecodeGovernor mGovernor;
+
+    final Histogram mDecode = addTime( "decode" );
+    final Histogram mResultWait = addTime( "resultWait" );
+    final Histogram mStartFrame = addTime( "startFrame" );
+    final Histogram mAddReads = addTime( "addReadRecord" );
+    final Histogram mEndFrame = addTime( "endFrame" );
+    final Histogram mPathConversion = addTime( "pathConversion" );
+    final Histogram mSetDisplayData = addTime( "setDisplayData" );
+    final Histogram mFrame = addTime( "frame" );
+
+    final Histogram mLiveTracks = addCount( "liveTracks", "tracks" );
+    final Histogram mNewTracks = addCount( "newTracks", "tracks" );
+    final Histogram mRemovedTracks = addCount( "removedTracks", "tracks" );
+    final Histogram mMatchRate = addCount( "matchRate", "%" );
+
+    /**
+     * Get the registered histograms in the order they are reported.
+     * @return Unmodifiable list of histograms
+     */
+    @NonNull
+    public List<Histogram> getHistograms()
+    {
+        return Collections.unmodifiableList( mHistograms );
+    }
+
+    /**
+     * Add a pipeline stage whose item counts are reported with the metrics. Stages should be
+     * added before the metrics are shared with other threads.
+     * @param stage Pipeline stage
+     */
+    public void addStage( @NonNull PipelineStage<?> stage )
+    {
+        mStages.add( stage );
+    }
+
+    /**
+     * Set the decode governor whose state is reported with the metrics. This should be set
+     * before the metrics are shared with other threads.
+     * @param governor Decode governor
+     */
+    public void setGovernor( @NonNull DecodeGovernor governor )
+    {
+        mGovernor = governor;
+    }
+
+    /**
+     * Record the counts for a frame that the cache has finished processing.
+     * @param cache Cache that has just ended a frame
+     */
+    public void recordFrame( @NonNull ReaderResultCache cache )
+    {
+        mLiveTracks.record( cache.getCurrentResults().size() );
+        mNewTracks.record( cache.getNewResults().size() );
+        mRemovedTracks.record( cache.getRemovedResults().size() );
+
+        int reads = cache.getFrameReadCount();
+
+        if ( reads > 0 )
+            mMatchRate.record( Math.round( cache.getFrameMatchCount() * 100f / reads ) );
+    }
+
+    /**
+     * Discard all recorded values. The stages keep their item counts.
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < mHistograms.size(); i++ )
+            mHistograms.get( i ).reset();
+    }
+
+    /**
+     * Get a short text summary of each histogram, one line per histogram, for display.
+     * @return Summary text
+     */
+    @NonNull
+    public String getSummary()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for ( int i = 0; i < mHistograms.size(); i++ )
+        {
+            Histogram histogram = mHistograms.get( i );
+            boolean time = "ns".equals( histogram.getUnit() );
+
+            // Times are shown in microseconds
+            double scale = time ? 1000.0 : 1.0;
+
+            builder.append( String.format( Locale.US, "%-15s n=%d mean=%.1f p50=%.1f p99=%.1f max=%.1f %s%n",
+                                           histogram.getName(), histogram.getCount(),
+                                           histogram.getMean() / scale,
+                                           histogram.getValueAtPercentile( 50 ) / scale,
+                                           histogram.getValueAtPercentile( 99 ) / scale,
+                                           histogram.getMax() / scale, time ? "us" : histogram.getUnit() ) );
+        }
+
+        for ( int i = 0; i < mStages.size(); i++ )
+        {
+            PipelineStage<?> stage = mStages.get( i );
+
+            builder.append( String.format( Locale.US, "%-15s submitted=%d processed=%d dropped=%d%n",
+                                           stage.getName(), stage.getSubmittedCount(),
+                                           stage.getProcessedCount(), stage.getDroppedCount() ) );
+        }
+
+        if ( mGovernor != null )
+        {
+            builder.append( String.format( Locale.US, "%-15s interval=%.1f decode=%.1f ms skipped=%d%n",
+                                           "governor", mGovernor.getDecodeInterval() / 1e6,
+                                           mGovernor.getDecodeTime() / 1e6, mGovernor.getSkippedCount() ) );
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Write the histograms as JSON so recordings from different devices can be compared. Each
+     * histogram has its unit, count, min, mean, max, percentiles and its non-empty buckets as
+     * [lowest value, count] pairs. Each stage has its submitted, processed and dropped counts, and
+     * the governor its decode interval, average decode time (both in nanoseconds) and the number
+     * of frames it skipped.
+     * @param out    Destination stream. The stream is not closed.
+     * @param device Description of the device the metrics were recorded on
+     */
+    public void writeJson( @NonNull OutputStream out, @NonNull String device ) throws IOException
+    {
+        Writer writer = new OutputStreamWriter( out, StandardCharsets.UTF_8 );
+
+        writer.write( "{\n  \"device\": " );
+        writeString( writer, device );
+        writer.write( ",\n  \"histograms\": {" );
+
+        for ( int i = 0; i < mHistograms.size(); i++ )
+        {
+            Histogram histogram = mHistograms.get( i );
+
+            writer.write( i == 0 ? "\n    " : ",\n    " );
+            writeString( writer, histogram.getName() );
+            writer.write( ": {\n      \"unit\": " );
+            writeString( writer, histogram.getUnit() );
+            writer.write( String.format( Locale.US, ",\n      \"count\": %d,\n      \"min\": %d," +
+                                                    "\n      \"mean\": %.1f,\n      \"max\": %d",
+                                         histogram.getCount(), histogram.getMin(),
+                                         histogram.getMean(), histogram.getMax() ) );
+
+            writer.write( ",\n      \"percentiles\": {" );
+
+            for ( int p = 0; p < Percentiles.length; p++ )
+            {
+                writer.write( String.format( Locale.US, "%s\"%s\": %d", p == 0 ? " " : ", ",
+                                             formatPercentile( Percentiles[p] ),
+                                             histogram.getValueAtPercentile( Percentiles[p] ) ) );
+            }
+
+            writer.write( " },\n      \"buckets\": [" );
+
+            boolean first = true;
+
+            for ( int b = 0; b < histogram.getBucketCount(); b++ )
+            {
+                long count = histogram.getCountAtBucket( b );
+
+                if ( count == 0 )
+                    continue;
+
+                writer.write( first ? "" : ", " );
+                writer.write( "[" + histogram.getBucketValue( b ) + ", " + count + "]" );
+                first = false;
+            }
+
+            writer.write( "]\n    }" );
+        }
+
+        writer.write( "\n  },\n  \"stages\": {" );
+
+        for ( int i = 0; i < mStages.size(); i++ )
+        {
+            PipelineStage<?> stage = mStages.get( i );
+
+            writer.write( i == 0 ? "\n    " : ",\n    " );
+            writeString( writer, stage.getName() );
+            writer.write( String.format( Locale.US, ": { \"submitted\": %d, \"processed\": %d, \"dropped\": %d }",
+                                         stage.getSubmittedCount(), stage.getProcessedCount(),
+                                         stage.getDroppedCount() ) );
+        }
+
+        writer.write( "\n  }" );
+
+        if ( mGovernor != null )
+        {
+            writer.write( String.format( Locale.US, ",\n  \"governor\": { \"interval\": %d," +
+                                                    " \"decodeTime\": %d, \"skipped\": %d }",
+                                         mGovernor.getDecodeInterval(), mGovernor.getDecodeTime(),
+                                         mGovernor.getSkippedCount() ) );
+        }
+
+        writer.write( "\n}\n" );
+        writer.flush();
+    }
+
+    @NonNull
+    private Histogram addTime( @NonNull String name )
+    {
+        Histogram histogram = new Histogram( name, "ns", Max_Time );
+        mHistograms.add( histogram );
+
+        return histogram;
+    }
+
+    @NonNull
+    private Histogram addCount( @NonNull String name, @NonNull String unit )
+    {
+        Histogram histogram = new Histogram( name, unit, Max_Count );
+        mHistograms.add( histogram );
+
+        return histogram;
+    }
+
+    // Percentiles are named without a trailing ".0", e.g. "p99" and "p99.9"
+    @NonNull
+    private static String formatPercentile( double percentile )
+    {
+        if ( percentile == Math.rint( percentile ) )
+            return "p" + (long) percentile;
+
+        return "p" + percentile;
+    }
+
+    private static void writeString( @NonNull Writer writer, @NonNull String value ) throws IOException
+    {
+        writer.write( '"' );
+
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+
+            if ( c == '"' || c == '\\' )
+            {
+                writer.write( '\\' );
+                writer.write( c );
+            }
+            else if ( c < 0x20 )
+                writer.write( String.format( Locale.US, "\\u%04x", (int) c ) );
+            else
+                writer.write( c );
+        }
+
+        writer.write( '"' );
+    }
+}
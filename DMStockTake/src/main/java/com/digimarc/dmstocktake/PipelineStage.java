@@ -0,0 +1,202 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stage of the frame pipeline that processes items on its own thread. Items are handed over
+ * through a single slot rather than a queue: submitting an item while an earlier one is still
+ * waiting replaces the earlier one, which is dropped and counted. The producer never blocks, and
+ * when the stage falls behind it skips straight to the newest item instead of working through a
+ * backlog of stale ones.
+ * <p>
+ * submit() may be called from any thread. The handler is only called on the stage's thread, one
+ * item at a time.
+ * @param <T> Item type
+ */
+public class PipelineStage<T>
+{
+    // Time to wait for the item being processed when the stage is stopped
+    private static final long Stop_Timeout = 2000;
+
+    /**
+     * Processes the items submitted to a stage.
+     * @param <T> Item type
+     */
+    public interface Handler<T>
+    {
+        void process( @NonNull T item );
+    }
+
+    private final String mName;
+    private final Handler<T> mHandler;
+
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile boolean mRunning = false;
+    private volatile Thread mThread;
+
+    /**
+     * Create a stage. The stage's thread isn't started until start() is called.
+     * @param name    Name of the stage and its thread
+     * @param handler Handler for the submitted items
+     */
+    public PipelineStage( @NonNull String name, @NonNull Handler<T> handler )
+    {
+        mName = name;
+        mHandler = handler;
+    }
+
+    @NonNull
+    public String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * Start the stage's thread.
+     */
+    public synchronized void start()
+    {
+        if ( mThread != null )
+            return;
+
+        mRunning = true;
+
+        mThread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runStage();
+            }
+        }, mName );
+
+        mThread.start();
+    }
+
+    /**
+     * Hand an item to the stage. This never blocks. If an item submitted earlier hasn't been
+     * picked up yet it is replaced by this one.
+     * @param item Item to process
+     * @return false if an earlier item was dropped to make way for this one.
+     */
+    public boolean submit( @NonNull T item )
+    {
+        return exchange( item ) == null;
+    }
+
+    /**
+     * Hand an item to the stage, getting back the item it replaced so it can be reused. This never
+     * blocks.
+     * @param item Item to process
+     * @return The earlier item dropped to make way for this one, or null if there was none.
+     */
+    @Nullable
+    public T exchange( @NonNull T item )
+    {
+        mSubmitted.incrementAndGet();
+
+        T replaced = mSlot.getAndSet( item );
+
+        if ( replaced != null )
+            mDropped.incrementAndGet();
+
+        Thread thread = mThread;
+
+        if ( thread != null )
+            LockSupport.unpark( thread );
+
+        return replaced;
+    }
+
+    /**
+     * Stop the stage's thread, waiting for the item being processed to finish. An item still
+     * waiting to be picked up is dropped.
+     */
+    public synchronized void stop()
+    {
+        if ( mThread == null )
+            return;
+
+        mRunning = false;
+        LockSupport.unpark( mThread );
+
+        try
+        {
+            mThread.join( Stop_Timeout );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        mThread = null;
+
+        if ( mSlot.getAndSet( null ) != null )
+            mDropped.incrementAndGet();
+    }
+
+    /**
+     * Get the number of items submitted to the stage.
+     * @return Submitted item count
+     */
+    public long getSubmittedCount()
+    {
+        return mSubmitted.get();
+    }
+
+    /**
+     * Get the number of items the stage has processed.
+     * @return Processed item count
+     */
+    public long getProcessedCount()
+    {
+        return mProcessed.get();
+    }
+
+    /**
+     * Get the number of items dropped because a newer item was submitted before they were picked
+     * up, or because the stage was stopped.
+     * @return Dropped item count
+     */
+    public long getDroppedCount()
+    {
+        return mDropped.get();
+    }
+
+    private void runStage()
+    {
+        while ( mRunning )
+        {
+            T item = mSlot.getAndSet( null );
+
+            if ( item == null )
+            {
+                // A submit() between the check and here leaves a permit, so park returns at once
+                LockSupport.park( this );
+                continue;
+            }
+
+            try
+            {
+                mHandler.process( item );
+            }
+            catch ( RuntimeException e )
+            {
+                // One bad item shouldn't stop the pipeline
+                e.printStackTrace();
+            }
+
+            mProcessed.incrementAndGet();
+        }
+    }
+}
@@ -17,11 +17,15 @@ public class PreferenceActivity
 {
     // Named values returned to the calling activity in an intent
     public static final String CHANGED_DISTANCE = "DistanceChanged";
+    public static final String CHANGED_TRACKING = "TrackingChanged";
 
     // Named values of preference entries
     public static final String ENTRY_DISTANCE = "BarcodeDistance";
+    public static final String ENTRY_TRACKING = "TrackingMode";
+    public static final String ENTRY_EXPORT_FORMAT = "ExportFormat";
 
     private boolean distanceChanged = false;
+    private boolean trackingChanged = false;
 
 	@SuppressWarnings("deprecation")
 	@Override
@@ -36,6 +40,7 @@ public class PreferenceActivity
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 
         data.putExtra(CHANGED_DISTANCE, distanceChanged);
+        data.putExtra(CHANGED_TRACKING, trackingChanged);
 
 		setResult(RESULT_OK, data);
 
@@ -47,6 +52,7 @@ public class PreferenceActivity
 	    Intent data = new Intent();
 
         data.putExtra(CHANGED_DISTANCE, distanceChanged);
+        data.putExtra(CHANGED_TRACKING, trackingChanged);
 
 		setResult(RESULT_OK, data);
 
@@ -61,6 +67,9 @@ public class PreferenceActivity
             case ENTRY_DISTANCE:
                 distanceChanged = true;
                 break;
+            case ENTRY_TRACKING:
+                trackingChanged = true;
+                break;
             default:
                 break;
         }
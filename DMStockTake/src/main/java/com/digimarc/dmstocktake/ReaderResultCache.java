@@ -9,7 +9,10 @@ import com.digimarc.dms.readers.DataDictionary;
 import com.digimarc.dms.readers.Utility;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This class maintains a cache of read results over the a period of time. This allows an
@@ -26,45 +29,80 @@ import java.util.List;
  * <p>
  * Once a frame is completed (i.e. after endFrame() is called) the data can be retrieved with the
  * methods getCurrentResults(), getNewResults() and getRemovedResults().
+ * <p>
+ * Reads are matched to existing tracks according to the cache's MatchMode. Greedy matching
+ * (the default) gives each read the first overlapping track with the same payload. Optimal
+ * matching holds the reads until endFrame() and assigns them to tracks with a minimum cost
+ * assignment per payload, which keeps IDs stable when identical codes sit next to each other.
+ * <p>
+ * How long results stay in the cache, how far regions are expanded for matching and how many
+ * reads it takes to confirm a new track is set by a TrackingPolicy. Tracks that have not been
+ * confirmed yet are matched like any other track but are not included in the results.
+ * <p>
+ * Frames with hundreds of reads can be matched on a small pool of worker threads, see
+ * setParallelMatching().
+ * <p>
+ * Instead of comparing the result lists between frames, a TrackListener can be added to be told
+ * when tracks start, move or are lost.
+ * <p>
+ * The cache itself is not thread safe and the result lists are only valid on the thread that
+ * processes frames. Other threads can read results through immutable snapshots, which the cache
+ * publishes at the end of each frame once setSnapshotsEnabled( true ) has been called.
  */
 public class ReaderResultCache
 {
-    // Set how long should results stay in the cache (time in milliseconds)
-    private static final long Max_Interval = 500;
+    private int mEntryCount = 0;
 
-    private static final float Small_Code_Threshold = 0.2f;
-    private static final float Large_Code_Threshold = 0.4f;
+    // Limits for optimal matching. Payload groups with more reads or candidate tracks than
+    // Max_Assignment_Size, and any groups left once the per frame time budget (in nanoseconds)
+    // is used up, fall back to greedy matching.
+    private static final int Max_Assignment_Size = 64;
+    private static final long Assignment_Budget = 2_000_000;
 
-    private int mEntryCount = 0;
+    // Match states for reads held until the end of the frame. Matched reads hold the track's slot.
+    private static final int Match_Pending = -3;
+    private static final int Match_Greedy = -2;
+    private static final int Match_None = -1;
 
-    private static final float Expansion_Small = 2.5f;
-    private static final float Expansion_Medium = .8f;
-    private static final float Expansion_Large = .35f;
+    /**
+     * Strategy used to match reads to existing tracks.
+     */
+    public enum MatchMode
+    {
+        // Each read is matched as it is added to the first overlapping track with the same payload
+        Greedy,
+        // Reads are held until endFrame() and then matched per payload with a minimum cost assignment
+        Optimal
+    }
 
     /**
-     * Class that tracks read data and regions.
+     * Class that tracks read data and regions. A ReadData object is a view over one slot of the
+     * cache's TrackStore. The same object is used for a track for as long as it stays in the cache,
+     * and is reused for a new track once the original has been removed. References to a ReadData
+     * are only valid until its track is removed; copy anything needed after that.
      */
     public static class ReadData
     {
-        private final Payload mPayload;
-        private final Region mRegion;
-        private final DataDictionary mMetadata;
+        private final TrackStore mStore;
+        private final int mSlot;
         public long mReadTime;
-        private Region mExpandedRegion;
 
         // ID is intended as a way of allowing the application to track an individual code
         // and potentially maintain app level metadata on it across frames.
         public int mReadId;
 
-        ReadData( @NonNull final Payload payload, @NonNull final Region region,
-                  @NonNull final DataDictionary metadata, long timestamp )
+        // Point lists and regions are filled from the store on demand and reused
+        private final List<Point> mPoints = newPointList();
+        private final List<Point> mExpandedPoints = newPointList();
+        private final Region mRegion = new Region( mPoints );
+        private final Region mExpandedRegion = new Region( mExpandedPoints );
+
+        ReadData( @NonNull final TrackStore store, int slot )
         {
-            mPayload = payload;
-            mRegion = region;
-            mMetadata = metadata;
-            mReadTime = timestamp;
+            mStore = store;
+            mSlot = slot;
+            mReadTime = 0;
             mReadId = 0;
-            mExpandedRegion = null;
         }
 
         void setId( int id )
@@ -77,9 +115,14 @@ public class ReaderResultCache
             return mReadId;
         }
 
+        int getSlot()
+        {
+            return mSlot;
+        }
+
         Payload getPayload()
         {
-            return mPayload;
+            return mStore.mPayloads[mSlot];
         }
 
         @Override
@@ -90,51 +133,235 @@ public class ReaderResultCache
             ReadData readData = (ReadData) o;
 
             if ( mReadId != readData.mReadId ) return false;
-            return mPayload.equals( readData.mPayload );
+
+            Payload payload = getPayload();
+            return payload != null ? payload.equals( readData.getPayload() ) : readData.getPayload() == null;
         }
 
         @Override
         public int hashCode() {
-            int result = mPayload.hashCode();
+            Payload payload = getPayload();
+            int result = payload != null ? payload.hashCode() : 0;
             result = 31 * result + mReadId;
             return result;
         }
 
-        boolean isStale( long frameTime )
+        boolean isStale( long frameTime, long maxInterval )
         {
-            return frameTime - mReadTime > Max_Interval;
+            return frameTime - mReadTime > maxInterval;
         }
 
         @NonNull Region getRegion()
         {
+            getRegionPoints();
+            mRegion.update();
+
             return mRegion;
         }
 
+        /**
+         * Get the corners of the read region, smoothed if the tracking policy enables smoothing.
+         * The returned list is owned by this object and is refreshed on each call.
+         * @return List of corner points
+         */
         @NonNull List<Point> getRegionPoints()
         {
-            return mRegion.getPoints();
+            TrackStore.copyCorners( mStore.mSmoothed, mSlot * TrackStore.Corner_Stride, mPoints );
+
+            return mPoints;
+        }
+
+        /**
+         * Copy the corners of the read region into an array without creating any objects. The
+         * corners are smoothed if the tracking policy enables smoothing.
+         * @param out    Destination array
+         * @param offset Offset of the first corner in the array
+         */
+        void getCorners( @NonNull int[] out, int offset )
+        {
+            System.arraycopy( mStore.mSmoothed, mSlot * TrackStore.Corner_Stride, out, offset,
+                              TrackStore.Corner_Stride );
+        }
+
+        int getCenterX()
+        {
+            return mStore.mCenters[mSlot * 2];
+        }
+
+        int getCenterY()
+        {
+            return mStore.mCenters[mSlot * 2 + 1];
+        }
+
+        /**
+         * Get the time at which the track was first read.
+         * @return Time in milliseconds, using the cache's time base
+         */
+        long getStartTime()
+        {
+            return mStore.mStartTimes[mSlot];
+        }
+
+        /**
+         * Get the track's confidence score: an exponentially weighted rate of the frames in which
+         * it was read. This can be used to rank results or to skip work for noisy tracks.
+         * @return Confidence between 0 and 1
+         */
+        float getConfidence()
+        {
+            return mStore.mConfidence[mSlot];
+        }
+
+        /**
+         * Check whether the track's smoothed corners have stayed within the policy's stationary
+         * threshold since it last moved. A stationary track doesn't need to be redrawn.
+         * @return true if the track is stationary
+         */
+        boolean isStationary()
+        {
+            return mStore.mStationary[mSlot];
+        }
+
+        /**
+         * Get the estimated horizontal velocity of the code.
+         * @return Velocity in pixels per millisecond
+         */
+        float getVelocityX()
+        {
+            return mStore.mVelocities[mSlot * 2];
+        }
+
+        /**
+         * Get the estimated vertical velocity of the code.
+         * @return Velocity in pixels per millisecond
+         */
+        float getVelocityY()
+        {
+            return mStore.mVelocities[mSlot * 2 + 1];
         }
 
         @NonNull DataDictionary getMetadata()
         {
-            return mMetadata;
+            return mStore.mMetadata[mSlot];
         }
 
         @NonNull
         Region getExpandedRegion()
         {
-            if ( mExpandedRegion == null )
-                mExpandedRegion = new Region( mRegion.getExpandedPoints() );
+            TrackStore.copyCorners( mStore.mExpanded, mSlot * TrackStore.Corner_Stride, mExpandedPoints );
+            mExpandedRegion.update();
 
             return mExpandedRegion;
         }
+
+        @NonNull
+        private static List<Point> newPointList()
+        {
+            List<Point> points = new ArrayList<>( TrackStore.Corner_Count );
+
+            for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+                points.add( new Point() );
+
+            return points;
+        }
     }
 
     private final List<ReadData> mData = new ArrayList<>();
     private final List<ReadData> mWorkingList = new ArrayList<>();
     private final List<ReadData> mRemovedPayloads = new ArrayList<>();
     private final List<ReadData> mNewPayloads = new ArrayList<>();
+
+    // Tracks that haven't been read often enough to be confirmed. These are matched to reads but
+    // are not part of the results.
+    private final List<ReadData> mTentative = new ArrayList<>();
+    private final List<ReadData> mTentativeWorking = new ArrayList<>();
+    private int mTentativeCount = 0;
+
+    // Number of tracks evicted to stay within the policy's track limit, and the number of new
+    // tracks dropped because every track had been read in the same frame
+    private long mEvictionCount = 0;
+    private long mDroppedCount = 0;
+
+    // Number of reads added in the current frame, and how many of them matched an existing track
+    private int mFrameReadCount = 0;
+    private int mFrameMatchCount = 0;
+
+    private final TrackStore mStore = new TrackStore();
+    private final TrackIndex mIndex = new TrackIndex();
     private long mFrameTime = 0;
+    private int mFrameNumber = 0;
+
+    // Holds the region of the read being added so it can be matched before a slot is assigned
+    private final int[] mReadCorners = new int[TrackStore.Corner_Stride];
+    private final int[] mReadCenter = new int[2];
+
+    private MatchMode mMatchMode = MatchMode.Greedy;
+
+    // The policy in use and the policy requested by setTrackingPolicy(). The requested policy may
+    // be set from any thread and is picked up at the start of the next frame.
+    private TrackingPolicy mPolicy;
+    private volatile TrackingPolicy mRequestedPolicy;
+    private long mMaxInterval;
+
+    // Reads held for optimal or parallel matching
+    private int mPendingCount = 0;
+    private int[] mPendingCorners = new int[0];
+    private int[] mPendingCenters = new int[0];
+    private int[] mPendingMatches = new int[0];
+    private long[] mPendingOrder = new long[0];
+    private Payload[] mPendingPayloads = new Payload[0];
+    private DataDictionary[] mPendingMetadata = new DataDictionary[0];
+
+    // Start of each run of held reads that share a payload hash, in mPendingOrder
+    private int[] mRunStarts = new int[1];
+
+    // Matchers for the held reads. With parallel matching there is one per thread, and the
+    // first runs on the thread that processes frames.
+    private GroupMatcher[] mMatchers = { new GroupMatcher() };
+    private ForkJoinPool mMatchingPool;
+    private int mParallelThreshold;
+
+    private final FrameClock mClock;
+
+    // Snapshots published at the end of each frame. Released snapshots are reused.
+    private boolean mSnapshotsEnabled = false;
+    private final List<ResultSnapshot> mSnapshots = new ArrayList<>();
+    private volatile ResultSnapshot mPublished;
+
+    // Listeners for track changes and the event object passed to them
+    private final List<TrackListener> mListeners = new ArrayList<>();
+    private final TrackEvent mEvent = new TrackEvent();
+
+    /**
+     * Create a cache that keeps results for a fixed 500 ms after their last read.
+     */
+    public ReaderResultCache()
+    {
+        this( TrackingPolicy.fixed() );
+    }
+
+    /**
+     * Create a cache.
+     * @param policy Policy that controls how long results are kept and how regions are matched
+     */
+    public ReaderResultCache( @NonNull TrackingPolicy policy )
+    {
+        this( policy, FrameClock.Elapsed_Realtime );
+    }
+
+    /**
+     * Create a cache.
+     * @param policy Policy that controls how long results are kept and how regions are matched
+     * @param clock  Clock used to timestamp frames when startFrame() is called without a
+     *               capture time
+     */
+    public ReaderResultCache( @NonNull TrackingPolicy policy, @NonNull FrameClock clock )
+    {
+        mPolicy = policy;
+        mRequestedPolicy = policy;
+        mMaxInterval = policy.getMaxInterval();
+        mClock = clock;
+    }
 
     /**
      * Get the read results from the most recent frame.
@@ -166,15 +393,62 @@ public class ReaderResultCache
 
     /**
      * This method prepares the cache for processing a new set of reads. This must be called before
-     * any calls to addReadRecord().
+     * any calls to addReadRecord(). The frame is timestamped with the cache's clock.
      */
     public void startFrame()
     {
+        startFrame( mClock.nanoTime() );
+    }
+
+    /**
+     * This method prepares the cache for processing a new set of reads. This must be called before
+     * any calls to addReadRecord().
+     * @param captureTime Time the frame was captured in nanoseconds. This must use the same
+     *                    monotonic time base as the cache's clock (by default
+     *                    SystemClock.elapsedRealtimeNanos()). Staleness is measured from this
+     *                    time, so delays between capture and processing don't age the results.
+     */
+    public void startFrame( long captureTime )
+    {
+        // Slots for results removed in the last frame can be reused now that the caller is done
+        // with that frame's data
+        releaseAll( mRemovedPayloads );
+
         mWorkingList.clear();
         mRemovedPayloads.clear();
         mNewPayloads.clear();
 
-        mFrameTime = System.currentTimeMillis();
+        // Frame times never go backwards, even if frames are delivered out of order
+        mFrameTime = Math.max( mFrameTime, captureTime / 1_000_000 );
+        mFrameNumber++;
+        mFrameReadCount = 0;
+        mFrameMatchCount = 0;
+
+        TrackingPolicy requested = mRequestedPolicy;
+        if ( requested != mPolicy )
+            applyPolicy( requested );
+
+        mPolicy.onFrame( mFrameTime );
+        mMaxInterval = mPolicy.getMaxInterval();
+
+        // Move each track to where its velocity predicts it will be in this frame and index the
+        // tracks by their predicted regions. The prediction is limited to the time a track may
+        // go without being read.
+        for ( int i = 0; i < mData.size(); i++ )
+        {
+            ReadData data = mData.get( i );
+            mStore.predict( data.getSlot(), Math.min( mFrameTime - data.mReadTime, mMaxInterval ) );
+        }
+
+        for ( int i = 0; i < mTentative.size(); i++ )
+        {
+            ReadData data = mTentative.get( i );
+            mStore.predict( data.getSlot(), Math.min( mFrameTime - data.mReadTime, mMaxInterval ) );
+        }
+
+        mTentativeCount = mTentative.size();
+
+        mIndex.rebuild( mData, mTentative, mStore );
     }
 
     /**
@@ -191,33 +465,138 @@ public class ReaderResultCache
 
         if (value != null)
         {
-            Region region = new Region( Utility.applyRotationToPoints( (List<Point>) value, rotation ) );
-
-            ReadData data = new ReadData( payload, region, metadata, mFrameTime );
+            List<Point> points = Utility.applyRotationToPoints( (List<Point>) value, rotation );
 
-            ReadData bestMatch = findDuplicate( data );
+            if ( points.size() < TrackStore.Corner_Count )
+                return;
 
-            if ( bestMatch != null )
+            if ( mMatchMode == MatchMode.Optimal || mMatchingPool != null )
             {
-                // Found a match. We'll update our new record with the ID from the matching read
-                // and then remove the original from our last results
+                addPendingRead( payload, metadata, points );
+                return;
+            }
+
+            TrackStore.copyPoints( points, mReadCorners, 0 );
+            Region.centerPoint( mReadCorners, 0, mReadCenter, 0 );
 
-                data.setId( bestMatch.getId() );
+            int slot = mIndex.findMatch( mStore, mReadCorners, 0, mReadCenter, 0, payload, mFrameNumber );
 
-                mData.remove( bestMatch );
+            commitRead( slot, payload, metadata, mReadCorners, 0 );
+        }
+    }
+
+    // Adds a read to the cache, either as an update of the track in the given slot or as a new
+    // track if the slot is negative.
+    private void commitRead( int slot, @NonNull Payload payload, @NonNull DataDictionary metadata,
+                             @NonNull int[] corners, int offset )
+    {
+        ReadData data;
+        boolean newTrack = slot < 0;
+
+        mFrameReadCount++;
+
+        if ( slot >= 0 )
+        {
+            mFrameMatchCount++;
+
+            // Found a match. The matching track is updated in place with the new read and
+            // flagged so it isn't also carried over from our last results
+
+            data = mStore.getView( slot );
+
+            Region.centerPoint( corners, offset, mReadCenter, 0 );
+            mStore.updateVelocity( slot, mReadCenter[0], mReadCenter[1], mFrameTime - data.mReadTime );
+        }
+        else
+        {
+            // No match found. Set up a new track. The number of tracks waiting to be confirmed
+            // is limited, so when there are too many the read is dropped.
+            if ( mPolicy.getPromotionHits() > 1 )
+            {
+                if ( mTentativeCount >= mPolicy.getMaxTentative() )
+                    return;
+
+                mTentativeCount++;
             }
-            else
+
+            slot = mStore.allocate();
+            data = mStore.getView( slot );
+            mStore.mFirstFrames[slot] = mFrameNumber;
+        }
+
+        mStore.set( slot, payload, metadata, corners, offset, mPolicy );
+
+        if ( newTrack )
+            mStore.resetSmoothing( slot );
+        else
+            mStore.smooth( slot, mFrameTime - data.mReadTime, mPolicy );
+
+        mStore.mMatchedFrame[slot] = mFrameNumber;
+        mStore.updateConfidence( slot, true, mPolicy.getConfidenceWeight() );
+        data.mReadTime = mFrameTime;
+
+        if ( !mStore.mConfirmed[slot] && ++mStore.mHits[slot] < mPolicy.getPromotionHits() )
+        {
+            mTentativeWorking.add( data );
+            return;
+        }
+
+        if ( mStore.mConfirmed[slot] )
+            mStore.touch( slot );
+        else
+        {
+            // The number of confirmed tracks is capped. At the cap the track that has gone longest
+            // without a read makes way for this one. If every track has been read in this frame
+            // the new track is dropped instead, or left tentative if it already was.
+            if ( mStore.getLruCount() >= mPolicy.getMaxTracks() && !evictLeastRecent() )
             {
-                // No match found. Set the ID and then add the read to our New results list
+                mDroppedCount++;
 
-                data.setId( mEntryCount++ );
+                if ( newTrack )
+                    mStore.release( slot );
+                else
+                    mTentativeWorking.add( data );
 
-                mNewPayloads.add( data );
+                return;
             }
 
-            // Whether this matched or not we add it to our current (ongoing) results list
-            mWorkingList.add( data );
+            confirm( data );
         }
+
+        // Whether this matched or not we add it to our current (ongoing) results list
+        mWorkingList.add( data );
+    }
+
+    // Confirms a track that has been read often enough. The track gets a new ID and is added to
+    // our New results list.
+    private void confirm( @NonNull ReadData data )
+    {
+        int slot = data.getSlot();
+
+        mStore.mConfirmed[slot] = true;
+        data.setId( mEntryCount++ );
+        mStore.mStartTimes[slot] = mFrameTime;
+        mStore.mStartFrames[slot] = mFrameNumber;
+        mStore.touch( slot );
+
+        mNewPayloads.add( data );
+    }
+
+    // Evicts the track that has gone longest without a read, unless it was read in this frame.
+    // The track stays in the current results until the end of the frame, when it is removed, but
+    // is no longer matched to reads.
+    private boolean evictLeastRecent()
+    {
+        int slot = mStore.getLeastRecent();
+
+        if ( slot < 0 || mStore.mMatchedFrame[slot] == mFrameNumber )
+            return false;
+
+        mStore.unlink( slot );
+        mStore.mEvicted[slot] = true;
+        mEvictionCount++;
+
+        return true;
     }
 
     /**
@@ -225,21 +604,183 @@ public class ReaderResultCache
      */
     public void endFrame()
     {
-        // Walk through mData and remove all records older than our max interval
-        for ( ReadData next : mData )
+        if ( mPendingCount > 0 )
+            matchPendingReads();
+
+        float weight = mPolicy.getConfidenceWeight();
+        float demotion = mPolicy.getDemotionThreshold();
+
+        // Walk through mData and remove all records older than our max interval, whose
+        // confidence has fallen below the demotion threshold or that were evicted. Records that
+        // were matched during this frame have already been replaced in the working list.
+        for ( int i = 0; i < mData.size(); i++ )
         {
-            if ( !next.isStale( mFrameTime ) )
+            ReadData next = mData.get( i );
+            int slot = next.getSlot();
+
+            if ( mStore.mMatchedFrame[slot] == mFrameNumber )
+                continue;
+
+            if ( mStore.mEvicted[slot] )
+            {
+                mRemovedPayloads.add( next );
+                continue;
+            }
+
+            mStore.updateConfidence( slot, false, weight );
+
+            if ( !next.isStale( mFrameTime, mMaxInterval ) && mStore.mConfidence[slot] >= demotion )
                 mWorkingList.add( next );
             else
                 mRemovedPayloads.add( next );
         }
 
+        // Tentative tracks that weren't confirmed within the promotion window are discarded. They
+        // were never part of the results so their slots can be reused immediately.
+        for ( int i = 0; i < mTentative.size(); i++ )
+        {
+            ReadData next = mTentative.get( i );
+            int slot = next.getSlot();
+
+            if ( mStore.mMatchedFrame[slot] == mFrameNumber )
+                continue;
+
+            mStore.updateConfidence( slot, false, weight );
+            mTentativeWorking.add( next );
+        }
+
+        mTentative.clear();
+
+        for ( int i = 0; i < mTentativeWorking.size(); i++ )
+        {
+            ReadData next = mTentativeWorking.get( i );
+
+            if ( next.isStale( mFrameTime, mMaxInterval ) ||
+                 mFrameNumber - mStore.mFirstFrames[next.getSlot()] + 1 >= mPolicy.getPromotionWindow() )
+                mStore.release( next.getSlot() );
+            else
+                mTentative.add( next );
+        }
+
+        mTentativeWorking.clear();
+
         mData.clear();
 
-        mData.addAll( mWorkingList );
+        for ( int i = 0; i < mWorkingList.size(); i++ )
+            mData.add( mWorkingList.get( i ) );
+
         mWorkingList.clear();
+
+        if ( !mListeners.isEmpty() )
+            dispatchEvents();
+
+        if ( mSnapshotsEnabled )
+            publishSnapshot();
+    }
+
+    /**
+     * Add a listener for track changes. This must be called on the thread that processes frames.
+     * @param listener Listener to add
+     */
+    public void addTrackListener( @NonNull TrackListener listener )
+    {
+        if ( !mListeners.contains( listener ) )
+            mListeners.add( listener );
+    }
+
+    /**
+     * Remove a listener for track changes. This must be called on the thread that processes
+     * frames.
+     * @param listener Listener to remove
+     */
+    public void removeTrackListener( @NonNull TrackListener listener )
+    {
+        mListeners.remove( listener );
+    }
+
+    // Tells the listeners about the tracks lost, started and moved in this frame
+    private void dispatchEvents()
+    {
+        for ( int i = 0; i < mRemovedPayloads.size(); i++ )
+        {
+            mEvent.set( mRemovedPayloads.get( i ), mFrameTime );
+
+            for ( int l = 0; l < mListeners.size(); l++ )
+                mListeners.get( l ).onTrackLost( mEvent );
+        }
+
+        for ( int i = 0; i < mNewPayloads.size(); i++ )
+        {
+            mEvent.set( mNewPayloads.get( i ), mFrameTime );
+
+            for ( int l = 0; l < mListeners.size(); l++ )
+                mListeners.get( l ).onTrackStarted( mEvent );
+        }
+
+        for ( int i = 0; i < mData.size(); i++ )
+        {
+            ReadData data = mData.get( i );
+            int slot = data.getSlot();
+
+            // Only tracks read in this frame can have moved, and stationary tracks are treated as
+            // not having moved
+            if ( mStore.mMatchedFrame[slot] != mFrameNumber || mStore.mStartFrames[slot] == mFrameNumber ||
+                 mStore.mStationary[slot] )
+                continue;
+
+            if ( !mEvent.setUpdate( data, mFrameTime, mStore ) )
+                continue;
+
+            for ( int l = 0; l < mListeners.size(); l++ )
+                mListeners.get( l ).onTrackUpdated( mEvent );
+        }
+
+        mEvent.clear();
+    }
+
+    /**
+     * Get the number of tracks evicted to stay within the tracking policy's track limit since the
+     * cache was created.
+     * @return Eviction count
+     */
+    public long getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+
+    /**
+     * Get the number of new tracks dropped since the cache was created because the tracking
+     * policy's track limit had been reached and every track had been read in the same frame.
+     * @return Dropped track count
+     */
+    public long getDroppedTrackCount()
+    {
+        return mDroppedCount;
+    }
+
+    /**
+     * Get the number of reads with a read region added in the most recent frame.
+     * @return Read count
+     */
+    public int getFrameReadCount()
+    {
+        return mFrameReadCount;
     }
 
+    /**
+     * Get the number of reads in the most recent frame that were matched to an existing track.
+     * The rest started new tracks or were dropped.
+     * @return Matched read count
+     */
+    public int getFrameMatchCount()
+    {
+        return mFrameMatchCount;
+    }
+
+    /**
+     * Get the time of the most recent frame.
+     * @return Frame time in milliseconds, using the cache's monotonic time base
+     */
     public long getFrameTime()
     {
         return mFrameTime;
@@ -249,9 +790,504 @@ public class ReaderResultCache
      * Clear cache.
      */
     public void clear() {
+        releaseAll( mData );
+        releaseAll( mRemovedPayloads );
+        releaseAll( mTentative );
+
+        mTentative.clear();
+        mTentativeCount = 0;
+
         mData.clear();
         mWorkingList.clear();
         mRemovedPayloads.clear();
+        mNewPayloads.clear();
+        mIndex.clear();
+
+        Arrays.fill( mPendingPayloads, 0, mPendingCount, null );
+        Arrays.fill( mPendingMetadata, 0, mPendingCount, null );
+        mPendingCount = 0;
+    }
+
+    /**
+     * Enable or disable publication of result snapshots. This must be called on the thread that
+     * processes frames. Enabling snapshots publishes the current results immediately.
+     * @param enabled true to publish a snapshot at the end of each frame
+     */
+    public void setSnapshotsEnabled( boolean enabled )
+    {
+        mSnapshotsEnabled = enabled;
+
+        if ( enabled )
+            publishSnapshot();
+        else
+            mPublished = null;
+    }
+
+    /**
+     * Get the most recently published result snapshot. This may be called from any thread. The
+     * snapshot must be released when the caller is done with it.
+     * @return Snapshot of the most recent frame, or null if snapshots are not enabled.
+     */
+    @Nullable
+    public ResultSnapshot acquireSnapshot()
+    {
+        while ( true )
+        {
+            ResultSnapshot snapshot = mPublished;
+
+            if ( snapshot == null )
+                return null;
+
+            snapshot.retain();
+
+            // If a newer snapshot was published before we took our reference, the one we have
+            // may already be getting reused. Let it go and try again.
+            if ( snapshot == mPublished )
+                return snapshot;
+
+            snapshot.release();
+        }
+    }
+
+    // Copies the frame's results into a snapshot that no reader is holding and publishes it
+    private void publishSnapshot()
+    {
+        ResultSnapshot published = mPublished;
+        ResultSnapshot target = null;
+
+        for ( int i = 0; i < mSnapshots.size(); i++ )
+        {
+            ResultSnapshot snapshot = mSnapshots.get( i );
+
+            if ( snapshot != published && !snapshot.isReferenced() )
+            {
+                target = snapshot;
+                break;
+            }
+        }
+
+        if ( target == null )
+        {
+            target = new ResultSnapshot();
+            mSnapshots.add( target );
+        }
+
+        target.fill( mData, mNewPayloads, mRemovedPayloads, mFrameTime, mFrameNumber );
+
+        mPublished = target;
+    }
+
+    /**
+     * Set the policy that controls how long results are kept and how regions are matched. This
+     * may be called from any thread; the new policy takes effect at the start of the next frame.
+     * @param policy Tracking policy
+     */
+    public void setTrackingPolicy( @NonNull TrackingPolicy policy )
+    {
+        mRequestedPolicy = policy;
+    }
+
+    @NonNull
+    public TrackingPolicy getTrackingPolicy()
+    {
+        return mRequestedPolicy;
+    }
+
+    // Switches to a new policy. The expanded regions of existing tracks are recalculated since
+    // the new policy may use different expansion factors, and tracks beyond the new policy's
+    // track limit are evicted.
+    private void applyPolicy( @NonNull TrackingPolicy policy )
+    {
+        mPolicy = policy;
+
+        int excess = mStore.getLruCount() - policy.getMaxTracks();
+
+        for ( int i = 0; i < excess; i++ )
+            evictLeastRecent();
+
+        for ( int i = 0; i < mData.size(); i++ )
+            mStore.updateExpanded( mData.get( i ).getSlot(), policy );
+
+        for ( int i = 0; i < mTentative.size(); i++ )
+            mStore.updateExpanded( mTentative.get( i ).getSlot(), policy );
+    }
+
+    /**
+     * Set the strategy used to match reads to existing tracks. The mode should only be changed
+     * between frames.
+     * @param mode Match mode
+     */
+    public void setMatchMode( @NonNull MatchMode mode )
+    {
+        mMatchMode = mode;
+    }
+
+    @NonNull
+    public MatchMode getMatchMode()
+    {
+        return mMatchMode;
+    }
+
+    /**
+     * Match the reads of busy frames on a pool of worker threads. Reads are held until
+     * endFrame(), as they are for optimal matching, and split by payload between the threads.
+     * Each thread matches its payloads against the tracks, and the reads are then added to the
+     * cache in the order they were received, so the results and IDs are the same as without
+     * parallel matching. (The one exception is optimal matching of frames that overrun its time
+     * budget, as more groups are solved within the budget.) This should only be called between
+     * frames.
+     * @param parallelism Number of threads to match on, including the thread that processes
+     *                    frames. 1 or less turns parallel matching off and shuts the pool down.
+     * @param threshold   Frames with fewer reads than this are matched on the calling thread only
+     */
+    public void setParallelMatching( int parallelism, int threshold )
+    {
+        if ( mMatchingPool != null )
+        {
+            mMatchingPool.shutdown();
+            mMatchingPool = null;
+        }
+
+        mParallelThreshold = threshold;
+        mMatchers = new GroupMatcher[Math.max( 1, parallelism )];
+
+        for ( int i = 0; i < mMatchers.length; i++ )
+            mMatchers[i] = new GroupMatcher();
+
+        if ( parallelism > 1 )
+            mMatchingPool = new ForkJoinPool( parallelism - 1 );
+    }
+
+    private void addPendingRead( @NonNull Payload payload, @NonNull DataDictionary metadata,
+                                 @NonNull List<Point> points )
+    {
+        if ( mPendingCount == mPendingPayloads.length )
+        {
+            int capacity = Math.max( 16, mPendingCount * 2 );
+
+            mPendingCorners = Arrays.copyOf( mPendingCorners, capacity * TrackStore.Corner_Stride );
+            mPendingCenters = Arrays.copyOf( mPendingCenters, capacity * 2 );
+            mPendingMatches = Arrays.copyOf( mPendingMatches, capacity );
+            mPendingOrder = Arrays.copyOf( mPendingOrder, capacity );
+            mPendingPayloads = Arrays.copyOf( mPendingPayloads, capacity );
+            mPendingMetadata = Arrays.copyOf( mPendingMetadata, capacity );
+            mRunStarts = Arrays.copyOf( mRunStarts, capacity + 1 );
+        }
+
+        int index = mPendingCount++;
+
+        TrackStore.copyPoints( points, mPendingCorners, index * TrackStore.Corner_Stride );
+        Region.centerPoint( mPendingCorners, index * TrackStore.Corner_Stride, mPendingCenters, index * 2 );
+
+        mPendingPayloads[index] = payload;
+        mPendingMetadata[index] = metadata;
+    }
+
+    // Matches the reads held during the frame to existing tracks. The reads are grouped by
+    // payload and each group is matched, as a minimum cost assignment between reads and tracks for
+    // optimal matching. Reads are then added to the cache in the order they were received.
+    private void matchPendingReads()
+    {
+        long deadline = System.nanoTime() + Assignment_Budget;
+        boolean optimal = mMatchMode == MatchMode.Optimal;
+        boolean parallel = mMatchingPool != null && mPendingCount >= mParallelThreshold;
+
+        // Sort the reads by payload hash. The read index is kept in the low bits so reads with
+        // the same payload stay in the order they were received.
+        for ( int i = 0; i < mPendingCount; i++ )
+        {
+            mPendingOrder[i] = ( (long) mPendingPayloads[i].hashCode() << 32 ) | i;
+            mPendingMatches[i] = optimal || parallel ? Match_Pending : Match_Greedy;
+        }
+
+        if ( optimal || parallel )
+        {
+            Arrays.sort( mPendingOrder, 0, mPendingCount );
+
+            // Find the runs of reads with the same payload hash. Each run is matched as a whole
+            // by one matcher.
+            int runCount = 0;
+
+            for ( int i = 0; i < mPendingCount; i++ )
+            {
+                if ( i == 0 || ( mPendingOrder[i] >> 32 ) != ( mPendingOrder[i - 1] >> 32 ) )
+                    mRunStarts[runCount++] = i;
+            }
+
+            mRunStarts[runCount] = mPendingCount;
+
+            int trackCount = mData.size() + mTentative.size();
+
+            if ( parallel )
+                matchParallel( runCount, trackCount, optimal, deadline );
+            else
+            {
+                mMatchers[0].prepare( 0, runCount, trackCount, optimal, deadline );
+                mMatchers[0].matchRuns();
+            }
+        }
+
+        for ( int i = 0; i < mPendingCount; i++ )
+        {
+            int slot = mPendingMatches[i];
+
+            // A track found for the read may have been evicted, or taken by a greedily matched
+            // read, since the matches were found. The read is then matched greedily.
+            if ( slot >= 0 && ( mStore.mEvicted[slot] || mStore.mMatchedFrame[slot] == mFrameNumber ) )
+                slot = Match_Greedy;
+
+            if ( slot == Match_Greedy )
+                slot = mIndex.findMatch( mStore, mPendingCorners, i * TrackStore.Corner_Stride,
+                                         mPendingCenters, i * 2, mPendingPayloads[i], mFrameNumber );
+
+            commitRead( slot, mPendingPayloads[i], mPendingMetadata[i], mPendingCorners,
+                        i * TrackStore.Corner_Stride );
+
+            mPendingPayloads[i] = null;
+            mPendingMetadata[i] = null;
+        }
+
+        mPendingCount = 0;
+    }
+
+    // Splits the runs of held reads between the matchers so each has about the same number of
+    // reads, and matches them on the pool and the calling thread
+    private void matchParallel( int runCount, int trackCount, boolean optimal, long deadline )
+    {
+        int partitions = Math.min( mMatchers.length, runCount );
+        int run = 0;
+
+        for ( int p = 0; p < partitions; p++ )
+        {
+            int first = run;
+            int target = (int) ( (long) mPendingCount * ( p + 1 ) / partitions );
+
+            // Each partition takes at least one run and leaves one for each of the others
+            run++;
+
+            while ( run < runCount - ( partitions - p - 1 ) && mRunStarts[run] < target )
+                run++;
+
+            if ( p == partitions - 1 )
+                run = runCount;
+
+            mMatchers[p].prepare( first, run, trackCount, optimal, deadline );
+        }
+
+        for ( int p = 1; p < partitions; p++ )
+        {
+            mMatchers[p].reinitialize();
+            mMatchingPool.execute( mMatchers[p] );
+        }
+
+        mMatchers[0].matchRuns();
+
+        for ( int p = 1; p < partitions; p++ )
+            mMatchers[p].join();
+    }
+
+    /**
+     * Finds matches for runs of held reads. A matcher only reads the tracks and writes the
+     * matches for the reads in its runs, so matchers for different runs can work in parallel.
+     */
+    private class GroupMatcher
+            extends RecursiveAction
+    {
+        // Matchers are never serialized, but RecursiveAction is Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final AssignmentSolver mSolver = new AssignmentSolver();
+        private int[] mGroup = new int[0];
+        private int[] mCandidates = new int[0];
+
+        // Tracks taken by earlier reads in a group that is matched greedily
+        private int[] mTaken = new int[0];
+
+        // Bounding box of the read being matched
+        private final int[] mReadBounds = new int[Region.Bounds_Stride];
+
+        private int mFirstRun;
+        private int mEndRun;
+        private boolean mOptimal;
+        private long mDeadline;
+
+        void prepare( int firstRun, int endRun, int trackCount, boolean optimal, long deadline )
+        {
+            mFirstRun = firstRun;
+            mEndRun = endRun;
+            mOptimal = optimal;
+            mDeadline = deadline;
+
+            if ( mCandidates.length < trackCount )
+                mCandidates = new int[trackCount];
+
+            if ( mGroup.length < mPendingCount )
+            {
+                mGroup = new int[mPendingCount];
+                mTaken = new int[mPendingCount];
+            }
+        }
+
+        @Override
+        protected void compute()
+        {
+            matchRuns();
+        }
+
+        void matchRuns()
+        {
+            for ( int run = mFirstRun; run < mEndRun; run++ )
+            {
+                int start = mRunStarts[run];
+                int end = mRunStarts[run + 1];
+
+                // Different payloads can share a hash, so split the run by payload
+                for ( int k = start; k < end; k++ )
+                {
+                    Payload payload = mPendingPayloads[(int) mPendingOrder[k]];
+
+                    if ( mPendingMatches[(int) mPendingOrder[k]] != Match_Pending )
+                        continue;
+
+                    int groupSize = 0;
+
+                    for ( int j = k; j < end; j++ )
+                    {
+                        int index = (int) mPendingOrder[j];
+
+                        if ( mPendingMatches[index] == Match_Pending && payload.equals( mPendingPayloads[index] ) )
+                            mGroup[groupSize++] = index;
+                    }
+
+                    if ( mOptimal )
+                        matchGroup( groupSize );
+                    else
+                        matchGroupGreedy( groupSize );
+                }
+            }
+        }
+
+        // Assigns the reads listed in mGroup (which all share a payload) to tracks
+        private void matchGroup( int groupSize )
+        {
+            int candidates = 0;
+
+            for ( int r = 0; r < groupSize; r++ )
+            {
+                int index = mGroup[r];
+                candidates = mIndex.collectMatches( mStore, mPendingCorners, index * TrackStore.Corner_Stride,
+                                                    mPendingCenters, index * 2, mPendingPayloads[index],
+                                                    mFrameNumber, mCandidates, candidates );
+            }
+
+            if ( candidates == 0 )
+            {
+                setGroupMatches( groupSize, Match_None );
+                return;
+            }
+
+            if ( groupSize > Max_Assignment_Size || candidates > Max_Assignment_Size ||
+                 System.nanoTime() > mDeadline )
+            {
+                setGroupMatches( groupSize, Match_Greedy );
+                return;
+            }
+
+            // The cost of a pairing is the squared distance between the read and the predicted
+            // track centers. Pairs that don't overlap can't be matched.
+            mSolver.reset( groupSize, candidates );
+
+            for ( int r = 0; r < groupSize; r++ )
+            {
+                int index = mGroup[r];
+
+                Region.bounds( mPendingCorners, index * TrackStore.Corner_Stride, mReadBounds, 0 );
+
+                for ( int c = 0; c < candidates; c++ )
+                {
+                    int slot = mCandidates[c];
+
+                    if ( !TrackIndex.overlaps( mStore, slot, mPendingCorners, index * TrackStore.Corner_Stride,
+                                               mReadBounds[0], mReadBounds[1], mReadBounds[2], mReadBounds[3],
+                                               mPendingCenters, index * 2 ) )
+                        continue;
+
+                    long dx = mPendingCenters[index * 2] - mStore.mPredictedCenters[slot * 2];
+                    long dy = mPendingCenters[index * 2 + 1] - mStore.mPredictedCenters[slot * 2 + 1];
+
+                    mSolver.setCost( r, c, dx * dx + dy * dy );
+                }
+            }
+
+            if ( !mSolver.solve( mDeadline ) )
+            {
+                setGroupMatches( groupSize, Match_Greedy );
+                return;
+            }
+
+            for ( int r = 0; r < groupSize; r++ )
+            {
+                int column = mSolver.getAssignment( r );
+                mPendingMatches[mGroup[r]] = column >= 0 ? mCandidates[column] : Match_None;
+            }
+        }
+
+        // Matches the reads listed in mGroup the way greedy matching would as they are added:
+        // in the order received, each read takes the first overlapping track that no earlier
+        // read has taken
+        private void matchGroupGreedy( int groupSize )
+        {
+            int taken = 0;
+
+            for ( int r = 0; r < groupSize; r++ )
+            {
+                int index = mGroup[r];
+                int candidates = mIndex.collectMatches( mStore, mPendingCorners, index * TrackStore.Corner_Stride,
+                                                        mPendingCenters, index * 2, mPendingPayloads[index],
+                                                        mFrameNumber, mCandidates, 0 );
+                int best = Match_None;
+                int bestOrder = Integer.MAX_VALUE;
+
+                for ( int c = 0; c < candidates; c++ )
+                {
+                    int slot = mCandidates[c];
+
+                    if ( mStore.mOrder[slot] < bestOrder && !isTaken( slot, taken ) )
+                    {
+                        best = slot;
+                        bestOrder = mStore.mOrder[slot];
+                    }
+                }
+
+                mPendingMatches[index] = best;
+
+                if ( best >= 0 )
+                    mTaken[taken++] = best;
+            }
+        }
+
+        private boolean isTaken( int slot, int taken )
+        {
+            for ( int i = 0; i < taken; i++ )
+            {
+                if ( mTaken[i] == slot )
+                    return true;
+            }
+
+            return false;
+        }
+
+        private void setGroupMatches( int groupSize, int match )
+        {
+            for ( int r = 0; r < groupSize; r++ )
+                mPendingMatches[mGroup[r]] = match;
+        }
+    }
+
+    private void releaseAll( @NonNull List<ReadData> list )
+    {
+        for ( int i = 0; i < list.size(); i++ )
+            mStore.release( list.get( i ).getSlot() );
     }
 
     /**
@@ -259,40 +1295,56 @@ public class ReaderResultCache
      * 1. The payloads match.
      * 2. The payloads have overlapping read regions, where read region A has a center point
      * within read region B or vice versa.
+     * Candidates are looked up through a payload/spatial grid index, so only tracks with the same
+     * payload in neighboring cells are tested. Existing tracks are tested at the position their
+     * estimated velocity predicts for the current frame.
      * @param newRead Read data for a new result
      * @return The matching record if the payloads are the same and the regions overlap.
      * Null otherwise.
      */
     @Nullable
     public ReadData findDuplicate(@NonNull final ReadData newRead) {
-        for ( ReadData next : mData )
-        {
-            if ( newRead.getPayload().equals( next.getPayload() ) &&
-                    hasOverlap( newRead.getRegion(), next.getExpandedRegion() ) )
-                return next;
-        }
-
-        return null;
-    }
+        // Match against the read's raw corners, as the tracks' are
+        System.arraycopy( newRead.mStore.mCorners, newRead.getSlot() * TrackStore.Corner_Stride, mReadCorners, 0,
+                          TrackStore.Corner_Stride );
+        mReadCenter[0] = newRead.getCenterX();
+        mReadCenter[1] = newRead.getCenterY();
 
-    private boolean hasOverlap( Region a, Region b) {
-        return (a.containsPoint(b.getCenter()) ||
-                b.containsPoint(a.getCenter()));
+        int slot = mIndex.findMatch( mStore, mReadCorners, 0, mReadCenter, 0, newRead.getPayload(), mFrameNumber );
 
+        return slot >= 0 ? mStore.getView( slot ) : null;
     }
 
-
     static class Region {
 
+        // Values per bounding box: left, top, right and bottom
+        static final int Bounds_Stride = 4;
+
         @NonNull
         private final List<Point> mCorners;
 
         @NonNull
-        private final Point mCenter;
+        private final Point mCenter = new Point();
+
+        // Copy of the corners, bounding box and center used by the primitive geometry methods
+        private final int[] mCornerArray = new int[TrackStore.Corner_Stride];
+        private final int[] mBounds = new int[Bounds_Stride];
+        private final int[] mCenterArray = new int[2];
 
         Region(@NonNull List<Point> corners) {
             mCorners = corners;
-            mCenter = centerPoint(mCorners);
+            update();
+        }
+
+        /**
+         * Recalculate the center point after the corner points have been changed.
+         */
+        void update() {
+            TrackStore.copyPoints( mCorners, mCornerArray, 0 );
+            bounds( mCornerArray, 0, mBounds, 0 );
+            centerPoint( mCornerArray, 0, mCenterArray, 0 );
+
+            mCenter.set( mCenterArray[0], mCenterArray[1] );
         }
 
         @NonNull
@@ -313,132 +1365,199 @@ public class ReaderResultCache
          * @return true if this region contains the given point and false otherwise.
          */
         public boolean containsPoint(Point point) {
+            return containsPoint( mCornerArray, 0, mBounds[0], mBounds[1], mBounds[2], mBounds[3],
+                                  point.x, point.y );
+        }
+
+        /**
+         * Primitive version of containsPoint() that works on a region held in a corner array.
+         * @param corners Corner array
+         * @param offset  Offset of the region's first corner
+         * @param x       X coordinate of the point to test
+         * @param y       Y coordinate of the point to test
+         * @return true if the region contains the given point and false otherwise.
+         */
+        static boolean containsPoint( @NonNull int[] corners, int offset, int x, int y )
+        {
+            int minX = corners[offset];
+            int maxX = minX;
+            int minY = corners[offset + 1];
+            int maxY = minY;
 
-            // Test the given point against each edge of the region. Working clockwise,
-            // the point is contained if it's to the right of each edge.
-            for (int i = 0; i < mCorners.size(); i++) {
-                Point point1 = mCorners.get(i);
+            for ( int i = 1; i < TrackStore.Corner_Count; i++ )
+            {
+                int cx = corners[offset + i * 2];
+                int cy = corners[offset + i * 2 + 1];
 
-                int next;
-                if (i == mCorners.size() - 1) {
-                    next = 0;
-                } else {
-                    next = i + 1;
-                }
+                minX = Math.min( minX, cx );
+                maxX = Math.max( maxX, cx );
+                minY = Math.min( minY, cy );
+                maxY = Math.max( maxY, cy );
+            }
 
-                Point point2 = mCorners.get(next);
+            return containsPoint( corners, offset, minX, minY, maxX, maxY, x, y );
+        }
 
-                // Since we're moving clockwise, a distance < 0 means that
-                // the point is to the "left" of this edge and must be outside
-                // our region.
-                if (distanceToLine(point1, point2, point) < 0) {
+        /**
+         * Version of containsPoint() for a region whose bounding box is already known, e.g. one
+         * cached with the region by bounds().
+         * @param corners Corner array
+         * @param offset  Offset of the region's first corner
+         * @param minX    Left of the region's bounding box
+         * @param minY    Top of the region's bounding box
+         * @param maxX    Right of the region's bounding box
+         * @param maxY    Bottom of the region's bounding box
+         * @param x       X coordinate of the point to test
+         * @param y       Y coordinate of the point to test
+         * @return true if the region contains the given point and false otherwise.
+         */
+        static boolean containsPoint( @NonNull int[] corners, int offset, int minX, int minY,
+                                      int maxX, int maxY, int x, int y )
+        {
+            // Most tests are for points well outside the region, which are rejected by its
+            // bounding box without any edge tests
+            if ( x < minX || x > maxX || y < minY || y > maxY )
+                return false;
+
+            // Test the given point against each edge of the region. Working clockwise, the point
+            // is contained if it's to the right of each edge. A distance < 0 means that the point
+            // is to the "left" of an edge and must be outside the region.
+            for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+            {
+                int next = i == TrackStore.Corner_Count - 1 ? 0 : i + 1;
+
+                if ( distanceToLine( corners[offset + i * 2], corners[offset + i * 2 + 1],
+                                     corners[offset + next * 2], corners[offset + next * 2 + 1],
+                                     x, y ) < 0 )
                     return false;
-                }
             }
 
             return true;
         }
 
         /**
-         * Create an vertically expanded version of the region. This method is intended to help
+         * Calculate the bounding box of a region held in a corner array.
+         * @param corners   Corner array
+         * @param offset    Offset of the region's first corner
+         * @param out       Array that receives the left, top, right and bottom of the box
+         * @param outOffset Offset of the box in the output array
+         */
+        static void bounds( @NonNull int[] corners, int offset, @NonNull int[] out, int outOffset )
+        {
+            int minX = corners[offset];
+            int maxX = minX;
+            int minY = corners[offset + 1];
+            int maxY = minY;
+
+            for ( int i = 1; i < TrackStore.Corner_Count; i++ )
+            {
+                int cx = corners[offset + i * 2];
+                int cy = corners[offset + i * 2 + 1];
+
+                minX = Math.min( minX, cx );
+                maxX = Math.max( maxX, cx );
+                minY = Math.min( minY, cy );
+                maxY = Math.max( maxY, cy );
+            }
+
+            out[outOffset] = minX;
+            out[outOffset + 1] = minY;
+            out[outOffset + 2] = maxX;
+            out[outOffset + 3] = maxY;
+        }
+
+        /**
+         * Primitive version of the center calculation that works on a region held in a
+         * corner array.
+         * @param corners   Corner array
+         * @param offset    Offset of the region's first corner
+         * @param out       Array that receives the center point
+         * @param outOffset Offset of the center point in the output array
+         */
+        static void centerPoint( @NonNull int[] corners, int offset, @NonNull int[] out, int outOffset )
+        {
+            int cx = 0;
+            int cy = 0;
+
+            for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+            {
+                cx += corners[offset + i * 2];
+                cy += corners[offset + i * 2 + 1];
+            }
+
+            out[outOffset] = cx / TrackStore.Corner_Count;
+            out[outOffset + 1] = cy / TrackStore.Corner_Count;
+        }
+
+        /**
+         * Create an vertically expanded version of a region. This method is intended to help
          * with calculating overlap of barcodes in the frame. For barcodes that are small vertically
          * in particular this helps to track movement. Several levels of scaling are used depending
          * on the aspect ratio of the bounding box. The closer a bounding box is to square the
-         * less scaling will be applied to the region.
-         * @return List of points for the expanded region.
+         * less scaling will be applied to the region. The source and destination may be the
+         * same array.
+         * @param corners   Corner array holding the source region
+         * @param offset    Offset of the source region's first corner
+         * @param out       Corner array that receives the expanded region
+         * @param outOffset Offset of the expanded region's first corner
+         * @param policy    Policy that provides the expansion factors
          */
-        @NonNull
-        List<Point> getExpandedPoints()
+        static void expand( @NonNull int[] corners, int offset, @NonNull int[] out, int outOffset,
+                            @NonNull TrackingPolicy policy )
         {
-            List<Point> pts = new ArrayList<>();
-
-            Point pt1 = mCorners.get(0);
-            Point pt2 = mCorners.get(1);
-            Point pt3 = mCorners.get(2);
+            int x1 = corners[offset];
+            int y1 = corners[offset + 1];
+            int x2 = corners[offset + 2];
+            int y2 = corners[offset + 3];
+            int x3 = corners[offset + 4];
+            int y3 = corners[offset + 5];
 
             // Get the horizontal & vertical change between points 2 & 3 (points 1 & 2 in the
-            // points list). The line between these points represents the height of the region.
-            int dX = pt3.x - pt2.x;
-            int dY = pt3.y - pt2.y;
+            // points list). The line between these points represents the height of the region,
+            // and its direction is the barcode vertical direction the region is expanded in.
+            int dX = x3 - x2;
+            int dY = y3 - y2;
 
-            // Calculate the overall width & height of the region. These values are the length of
-            // the line segments between the sets of points.
-            double width = distanceToPoint( pt1, pt2 );
-            double height = distanceToPoint( pt2, pt3 );
+            // Calculate the squared width & height of the region, the squared lengths of the line
+            // segments between the sets of points
+            long wX = x2 - x1;
+            long wY = y2 - y1;
+            long heightSquared = (long) dX * dX + (long) dY * dY;
+            long widthSquared = wX * wX + wY * wY;
 
-            // Get the angle of the barcode vertical direction. This angle is perpendicular to the
-            // barcode width. In a 1D barcode this angle could also be thought of as the angle
-            // between 0 degrees and a line in the barcode.
-            double angle = Math.atan2( dY, dX );
-
-            // Calculate the aspect ratio for the bounding box
-            double codeScale = height / width;
-
-            float expansionFactor;
+            // Calculate the aspect ratio for the bounding box. This is the only square root.
+            double codeScale = Math.sqrt( (double) heightSquared / widthSquared );
 
             // Using the aspect ratio determine how much we will enlarge the bounding box height.
             // The expansion factor here is a multiplier that will be applied to the box's height
             // in each direction
-            if ( codeScale < Small_Code_Threshold )             // shelf edge code - shorter than 2/10
-                expansionFactor = Expansion_Small;
-            else if ( codeScale < Large_Code_Threshold )        // medium size code (Target 4) - shorter than 4/10
-                expansionFactor = Expansion_Medium;
-            else
-                expansionFactor = Expansion_Large;              // Normal size code, 4/10 or larger
+            float expansionFactor = policy.getExpansionFactor( codeScale );
 
-            // Calculate how much will be added to the top and bottom of the box
-            double verticalOffset = expansionFactor * height;
-
-            // Using trig funtions calculate the X & Y values to add to each point
-            int xOffset = (int) Math.round(verticalOffset * Math.cos(angle));
-            int yOffset = (int) Math.round(verticalOffset * Math.sin(angle));
+            // Calculate the X & Y values to add to each point. These are the height direction
+            // (the height vector divided by its length) scaled by the amount added to the top
+            // and bottom of the box, i.e. the expansion factor times the length, so the height
+            // vector is simply scaled by the expansion factor.
+            int xOffset = (int) Math.round( (double) expansionFactor * dX );
+            int yOffset = (int) Math.round( (double) expansionFactor * dY );
 
             // Create the new points. The first two points move up (i.e. factor is -1) while the
             // second two points move down (factor is 1)
-            for ( int i = 0; i < 4; i++ )
+            for ( int i = 0; i < TrackStore.Corner_Count; i++ )
             {
                 // The first two points will move up the second two will move down
                 int factor = i < 2 ? -1 : 1;
-                Point pt = mCorners.get( i );
 
-                // Create the new point based on the original point and the adjustment values
-                pts.add( new Point( pt.x + factor * xOffset, pt.y + factor * yOffset ) );
+                out[outOffset + i * 2] = corners[offset + i * 2] + factor * xOffset;
+                out[outOffset + i * 2 + 1] = corners[offset + i * 2 + 1] + factor * yOffset;
             }
-
-            return pts;
         }
 
         // Returns the distance of a point relative to a line. The sign of the
         // result can be used to find what "side" of the line the point lies.
-        private int distanceToLine(Point point1, Point point2, Point testPoint) {
+        private static int distanceToLine( int x1, int y1, int x2, int y2, int xp, int yp ) {
             // Determine distance D using the line equation Ax + By + C = 0:
             // D = (x2 - x1) * (yp - y1) - (xp - x1) * (y2 - y1)
-            return (point2.x - point1.x) * (testPoint.y - point1.y) - (testPoint.x - point1.x) * (point2.y - point1.y);
-        }
-
-        int distanceToPoint( Point point1, Point point2 )
-        {
-            int dx = point1.x - point2.x;
-            int dy = point1.y - point2.y;
-
-            return (int) Math.sqrt( dx * dx + dy * dy );
-        }
-
-        private Point centerPoint(List<Point> points) {
-            int cx = 0;
-            int cy = 0;
-
-            int numberOfPoints = points.size();
-
-            for (int i = 0; i < numberOfPoints; i++) {
-                cx += points.get(i).x;
-                cy += points.get(i).y;
-            }
-
-            cx /= numberOfPoints;
-            cy /= numberOfPoints;
-
-            return new Point(cx, cy);
+            return (x2 - x1) * (yp - y1) - (xp - x1) * (y2 - y1);
         }
     }
 }
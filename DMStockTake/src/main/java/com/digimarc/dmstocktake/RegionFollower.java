@@ -0,0 +1,247 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Works out a detection region that follows the codes being tracked, so the reader only searches
+ * the part of each frame where codes actually are. The region is the bounding box of the live
+ * tracks plus a margin, given as fractions of the visible part of the frame (the form
+ * PreviewDetectionRegion takes). With no live tracks the region is the whole visible frame, and
+ * on a schedule it is widened to the whole visible frame for one frame so new codes outside the
+ * region are still found.
+ * <p>
+ * To avoid resetting the reader's region every frame the region is only moved when the tracks
+ * and their margin leave it or it could shrink by more than a quarter. When the region moves it
+ * is given half a margin of slack on each side, so codes drifting slowly across the frame only
+ * move it now and then. update() is called on the thread that processes frames and getRegion()
+ * may be called from any thread.
+ */
+public class RegionFollower
+{
+    // Margin added on each side of the tracks, as a fraction of the visible frame
+    private static final float Default_Margin = 0.1f;
+
+    // Smallest region, as a fraction of the visible frame in each direction
+    private static final float Default_Min_Size = 0.25f;
+
+    // Time between frames that search the whole visible frame (milliseconds)
+    private static final long Default_Widen_Interval = 1000;
+
+    // The region is moved if the new region's area is smaller than this fraction of its area
+    private static final float Shrink_Threshold = 0.75f;
+
+    // Slack given to a region when it moves, as a multiple of the margin
+    private static final float Slack = 0.5f;
+
+    private final float mMargin;
+    private final float mMinSize;
+    private final long mWidenInterval;
+
+    // Size of the camera frame in display orientation and the fraction of it that is visible
+    private float mFrameWidth = 0;
+    private float mFrameHeight = 0;
+    private float mVisibleWidth = 1;
+    private float mVisibleHeight = 1;
+
+    // Current region: left, top, right and bottom
+    private final float[] mRegion = { 0, 0, 1, 1 };
+    private final float[] mTarget = new float[4];
+    private final int[] mCorners = new int[TrackStore.Corner_Stride];
+
+    private long mLastWiden = Long.MIN_VALUE;
+    private boolean mWidened = true;
+
+    /**
+     * Create a follower with a margin of a tenth of the visible frame, a minimum size of a
+     * quarter of the visible frame and a full frame search every second.
+     */
+    public RegionFollower()
+    {
+        this( Default_Margin, Default_Min_Size, Default_Widen_Interval );
+    }
+
+    /**
+     * Create a follower.
+     * @param margin        Margin added on each side of the tracks, as a fraction of the visible
+     *                      frame
+     * @param minSize       Smallest region, as a fraction of the visible frame in each direction
+     * @param widenInterval Time between frames that search the whole visible frame, in
+     *                      milliseconds
+     */
+    public RegionFollower( float margin, float minSize, long widenInterval )
+    {
+        mMargin = margin;
+        mMinSize = minSize;
+        mWidenInterval = widenInterval;
+    }
+
+    /**
+     * Set the frame geometry used to convert track positions to fractions of the visible frame.
+     * @param frameWidth    Width of the camera frame in display orientation, in pixels
+     * @param frameHeight   Height of the camera frame in display orientation, in pixels
+     * @param visibleWidth  Fraction of the frame's width that is visible, centered
+     * @param visibleHeight Fraction of the frame's height that is visible, centered
+     */
+    public synchronized void setGeometry( float frameWidth, float frameHeight, float visibleWidth,
+                                          float visibleHeight )
+    {
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        mVisibleWidth = visibleWidth;
+        mVisibleHeight = visibleHeight;
+    }
+
+    /**
+     * Update the region from the live tracks of a cache. Call this after
+     * ReaderResultCache.endFrame().
+     * @param cache     Result cache
+     * @param frameTime Time of the frame in milliseconds
+     * @return true if the region changed.
+     */
+    public synchronized boolean update( @NonNull ReaderResultCache cache, long frameTime )
+    {
+        List<ReaderResultCache.ReadData> current = cache.getCurrentResults();
+
+        boolean widen = current.isEmpty() || mFrameWidth <= 0 || mFrameHeight <= 0 ||
+                        mLastWiden == Long.MIN_VALUE || frameTime - mLastWiden >= mWidenInterval;
+
+        if ( widen )
+        {
+            if ( !current.isEmpty() )
+                mLastWiden = frameTime;
+
+            if ( mWidened )
+                return false;
+
+            mWidened = true;
+            setRegion( 0, 0, 1, 1 );
+            return true;
+        }
+
+        findTarget( current, mMargin );
+
+        // Returning from a full frame search always moves the region. Otherwise the region only
+        // moves if the tracks have left it or it's much bigger than it needs to be.
+        boolean contained = mTarget[0] >= mRegion[0] && mTarget[1] >= mRegion[1] &&
+                            mTarget[2] <= mRegion[2] && mTarget[3] <= mRegion[3];
+
+        findTarget( current, mMargin * ( 1 + Slack ) );
+
+        float targetArea = ( mTarget[2] - mTarget[0] ) * ( mTarget[3] - mTarget[1] );
+        float area = ( mRegion[2] - mRegion[0] ) * ( mRegion[3] - mRegion[1] );
+
+        if ( !mWidened && contained && targetArea >= area * Shrink_Threshold )
+            return false;
+
+        mWidened = false;
+        setRegion( mTarget[0], mTarget[1], mTarget[2], mTarget[3] );
+
+        return true;
+    }
+
+    /**
+     * Copy the current region into an array.
+     * @param out Array that receives the left, top, right and bottom of the region as fractions of
+     *            the visible frame
+     */
+    public synchronized void getRegion( @NonNull float[] out )
+    {
+        System.arraycopy( mRegion, 0, out, 0, 4 );
+    }
+
+    /**
+     * Find out whether the current region is the whole visible frame.
+     * @return true if the region is the whole visible frame.
+     */
+    public synchronized boolean isWidened()
+    {
+        return mWidened;
+    }
+
+    /**
+     * Return to searching the whole visible frame, e.g. when following is turned on.
+     */
+    public synchronized void reset()
+    {
+        mWidened = true;
+        mLastWiden = Long.MIN_VALUE;
+        setRegion( 0, 0, 1, 1 );
+    }
+
+    // Sets mTarget to the bounding box of the tracks plus a margin, as fractions of the visible
+    // frame, no smaller than the minimum size and clipped to the visible frame
+    private void findTarget( @NonNull List<ReaderResultCache.ReadData> current, float margin )
+    {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        for ( int i = 0; i < current.size(); i++ )
+        {
+            current.get( i ).getCorners( mCorners, 0 );
+
+            for ( int c = 0; c < TrackStore.Corner_Count; c++ )
+            {
+                minX = Math.min( minX, mCorners[c * 2] );
+                maxX = Math.max( maxX, mCorners[c * 2] );
+                minY = Math.min( minY, mCorners[c * 2 + 1] );
+                maxY = Math.max( maxY, mCorners[c * 2 + 1] );
+            }
+        }
+
+        // The visible part of the frame is centered in it
+        float visibleWidth = mVisibleWidth * mFrameWidth;
+        float visibleHeight = mVisibleHeight * mFrameHeight;
+        float offsetX = ( mFrameWidth - visibleWidth ) / 2f;
+        float offsetY = ( mFrameHeight - visibleHeight ) / 2f;
+
+        mTarget[0] = ( minX - offsetX ) / visibleWidth - margin;
+        mTarget[1] = ( minY - offsetY ) / visibleHeight - margin;
+        mTarget[2] = ( maxX - offsetX ) / visibleWidth + margin;
+        mTarget[3] = ( maxY - offsetY ) / visibleHeight + margin;
+
+        fitRange( 0 );
+        fitRange( 1 );
+    }
+
+    // Grows one axis of mTarget to the minimum size and clips it to the visible frame, keeping the
+    // minimum size where possible
+    private void fitRange( int axis )
+    {
+        float low = mTarget[axis];
+        float high = mTarget[axis + 2];
+
+        if ( high - low < mMinSize )
+        {
+            float center = ( low + high ) / 2f;
+            low = center - mMinSize / 2f;
+            high = center + mMinSize / 2f;
+        }
+
+        if ( low < 0 )
+        {
+            high = Math.min( 1, high - low );
+            low = 0;
+        }
+
+        if ( high > 1 )
+        {
+            low = Math.max( 0, low - ( high - 1 ) );
+            high = 1;
+        }
+
+        mTarget[axis] = low;
+        mTarget[axis + 2] = high;
+    }
+
+    private void setRegion( float left, float top, float right, float bottom )
+    {
+        mRegion[0] = left;
+        mRegion[1] = top;
+        mRegion[2] = right;
+        mRegion[3] = bottom;
+    }
+}
@@ -0,0 +1,266 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.payload.Payload;
+import com.digimarc.dms.readers.DataDictionary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable copy of the results of one ReaderResultCache frame. Snapshots are published by the
+ * cache at the end of each frame and can be read from any thread without locking.
+ * <p>
+ * A snapshot must be acquired from the cache with ReaderResultCache.acquireSnapshot() and released
+ * when the reader is done with it, either by calling release() or by using the snapshot in a
+ * try-with-resources block. Once a snapshot has been replaced by a newer one and every reader has
+ * released it, the cache reuses it for a later frame.
+ */
+public final class ResultSnapshot
+        implements AutoCloseable
+{
+    /**
+     * Copy of a single track's data.
+     */
+    public static final class Track
+    {
+        private int mId;
+        private Payload mPayload;
+        private DataDictionary mMetadata;
+        private long mReadTime;
+        private final int[] mCorners = new int[TrackStore.Corner_Stride];
+        private int mCenterX;
+        private int mCenterY;
+        private float mConfidence;
+        private boolean mStationary;
+
+        private Track()
+        {
+        }
+
+        public int getId()
+        {
+            return mId;
+        }
+
+        @NonNull
+        public Payload getPayload()
+        {
+            return mPayload;
+        }
+
+        @NonNull
+        public DataDictionary getMetadata()
+        {
+            return mMetadata;
+        }
+
+        /**
+         * Get the time of the track's most recent read.
+         * @return Time in milliseconds, using the cache's time base
+         */
+        public long getReadTime()
+        {
+            return mReadTime;
+        }
+
+        public int getCornerX( int corner )
+        {
+            return mCorners[corner * 2];
+        }
+
+        public int getCornerY( int corner )
+        {
+            return mCorners[corner * 2 + 1];
+        }
+
+        /**
+         * Copy the corners of the track's region into an array.
+         * @param out    Destination array
+         * @param offset Offset of the first corner in the array
+         */
+        public void getCorners( @NonNull int[] out, int offset )
+        {
+            System.arraycopy( mCorners, 0, out, offset, TrackStore.Corner_Stride );
+        }
+
+        public int getCenterX()
+        {
+            return mCenterX;
+        }
+
+        public int getCenterY()
+        {
+            return mCenterY;
+        }
+
+        /**
+         * Get the track's confidence score.
+         * @return Confidence between 0 and 1
+         */
+        public float getConfidence()
+        {
+            return mConfidence;
+        }
+
+        /**
+         * Check whether the track has stayed still since it last moved, within the tracking
+         * policy's stationary threshold.
+         * @return true if the track is stationary
+         */
+        public boolean isStationary()
+        {
+            return mStationary;
+        }
+
+        private void set( @NonNull ReaderResultCache.ReadData data )
+        {
+            mId = data.getId();
+            mPayload = data.getPayload();
+            mMetadata = data.getMetadata();
+            mReadTime = data.mReadTime;
+            mCenterX = data.getCenterX();
+            mCenterY = data.getCenterY();
+            mConfidence = data.getConfidence();
+            mStationary = data.isStationary();
+            data.getCorners( mCorners, 0 );
+        }
+
+        private void clear()
+        {
+            mPayload = null;
+            mMetadata = null;
+        }
+    }
+
+    // Number of readers holding the snapshot
+    private final AtomicInteger mReferences = new AtomicInteger();
+
+    // Track records are pooled with the snapshot and reused when the snapshot is reused
+    private final List<Track> mTrackPool = new ArrayList<>();
+    private int mTrackCount = 0;
+
+    private final List<Track> mCurrent = new ArrayList<>();
+    private final List<Track> mNew = new ArrayList<>();
+    private final List<Track> mRemoved = new ArrayList<>();
+
+    private final List<Track> mCurrentView = Collections.unmodifiableList( mCurrent );
+    private final List<Track> mNewView = Collections.unmodifiableList( mNew );
+    private final List<Track> mRemovedView = Collections.unmodifiableList( mRemoved );
+
+    private long mFrameTime;
+    private int mFrameNumber;
+
+    ResultSnapshot()
+    {
+    }
+
+    /**
+     * Get the results that were current at the end of the frame.
+     * @return Unmodifiable list of tracks
+     */
+    @NonNull
+    public List<Track> getCurrentResults()
+    {
+        return mCurrentView;
+    }
+
+    /**
+     * Get the results that first appeared in the frame.
+     * @return Unmodifiable list of tracks
+     */
+    @NonNull
+    public List<Track> getNewResults()
+    {
+        return mNewView;
+    }
+
+    /**
+     * Get the results that were removed in the frame.
+     * @return Unmodifiable list of tracks
+     */
+    @NonNull
+    public List<Track> getRemovedResults()
+    {
+        return mRemovedView;
+    }
+
+    /**
+     * Get the time of the frame.
+     * @return Frame time in milliseconds, using the cache's time base
+     */
+    public long getFrameTime()
+    {
+        return mFrameTime;
+    }
+
+    public int getFrameNumber()
+    {
+        return mFrameNumber;
+    }
+
+    /**
+     * Release the snapshot. The snapshot must not be used after it has been released.
+     */
+    public void release()
+    {
+        mReferences.decrementAndGet();
+    }
+
+    @Override
+    public void close()
+    {
+        release();
+    }
+
+    void retain()
+    {
+        mReferences.incrementAndGet();
+    }
+
+    boolean isReferenced()
+    {
+        return mReferences.get() > 0;
+    }
+
+    /**
+     * Fill the snapshot from a frame's result lists. Called by the cache on its own thread while
+     * the snapshot is not published and not referenced by any reader.
+     */
+    void fill( @NonNull List<ReaderResultCache.ReadData> current,
+               @NonNull List<ReaderResultCache.ReadData> added,
+               @NonNull List<ReaderResultCache.ReadData> removed,
+               long frameTime, int frameNumber )
+    {
+        for ( int i = 0; i < mTrackCount; i++ )
+            mTrackPool.get( i ).clear();
+
+        mTrackCount = 0;
+        mCurrent.clear();
+        mNew.clear();
+        mRemoved.clear();
+
+        copy( current, mCurrent );
+        copy( added, mNew );
+        copy( removed, mRemoved );
+
+        mFrameTime = frameTime;
+        mFrameNumber = frameNumber;
+    }
+
+    private void copy( @NonNull List<ReaderResultCache.ReadData> source, @NonNull List<Track> dest )
+    {
+        for ( int i = 0; i < source.size(); i++ )
+        {
+            if ( mTrackCount == mTrackPool.size() )
+                mTrackPool.add( new Track() );
+
+            Track track = mTrackPool.get( mTrackCount++ );
+            track.set( source.get( i ) );
+            dest.add( track );
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.digimarc.dms.payload.Payload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects stock-take statistics over a whole session. ReaderResultCache only knows about codes
+ * seen in the last moments, so once a track goes stale its identity is lost. The aggregator
+ * consumes the new, read and removed results of each frame and keeps, for each payload, the
+ * number of facings (physical items) seen, the number of tracks currently visible, the first and
+ * last times it was seen and the lifetimes of its tracks.
+ * <p>
+ * A facing is counted for each track that starts, except that a track starting near where a
+ * track of the same payload was last read, shortly after that read, is taken to be the same item
+ * re-acquired. That covers an item that drops out for longer than the cache keeps it as well as a
+ * tracker miss, where the new track starts while the old one is still waiting to go stale. Items
+ * that reappear somewhere else in the frame, e.g. after a fast pan, are still counted again, so
+ * the facing count is an upper bound.
+ * <p>
+ * Each new, read or removed result is a single hash map update plus a scan of a few recent
+ * tracks of its payload, so the cost per frame depends only on how many tracks were read, started
+ * or ended. The number of payloads held is capped; once the cap is reached the payload that was
+ * seen least recently is dropped.
+ * <p>
+ * The aggregator is updated on the thread that processes frames. Its query methods may be called
+ * from any thread.
+ */
+public class SessionAggregator
+{
+    private static final int Default_Max_Payloads = 50_000;
+
+    // A track that starts within this time of the last read of a track of the same payload, with
+    // its center within this many times the larger of the two codes' sizes of that track's center,
+    // is the same item re-acquired
+    private static final long Reacquire_Time = 1500;
+    private static final float Reacquire_Distance = 1f;
+
+    // Recent track starts and ends remembered for each payload
+    private static final int Max_Recent_Tracks = 4;
+
+    /**
+     * Times and positions of a payload's recent track starts or ends, oldest overwritten first.
+     */
+    private static final class RecentTracks
+    {
+        final long[] mTimes = new long[Max_Recent_Tracks];
+        final int[] mCenterX = new int[Max_Recent_Tracks];
+        final int[] mCenterY = new int[Max_Recent_Tracks];
+        final int[] mSizes = new int[Max_Recent_Tracks];
+
+        // Whether each entry may still be matched
+        final boolean[] mActive = new boolean[Max_Recent_Tracks];
+        private int mNext = 0;
+
+        void add( long time, int centerX, int centerY, int size )
+        {
+            mTimes[mNext] = time;
+            mCenterX[mNext] = centerX;
+            mCenterY[mNext] = centerY;
+            mSizes[mNext] = size;
+            mActive[mNext] = true;
+            mNext = ( mNext + 1 ) % Max_Recent_Tracks;
+        }
+
+        /**
+         * Find an active entry between 0 and Reacquire_Time after a time that is near a position.
+         * @return Index of the entry, or -1 if there is none.
+         */
+        int findAfter( long time, int centerX, int centerY, int size )
+        {
+            for ( int i = 0; i < Max_Recent_Tracks; i++ )
+            {
+                long gap = mTimes[i] - time;
+
+                if ( mActive[i] && gap >= 0 && gap <= Reacquire_Time &&
+                     isNear( centerX, centerY, size, mCenterX[i], mCenterY[i], mSizes[i] ) )
+                    return i;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Find an active entry between 0 and Reacquire_Time before a time that is near a
+         * position.
+         * @return Index of the entry, or -1 if there is none.
+         */
+        int findBefore( long time, int centerX, int centerY, int size )
+        {
+            for ( int i = 0; i < Max_Recent_Tracks; i++ )
+            {
+                long gap = time - mTimes[i];
+
+                if ( mActive[i] && gap >= 0 && gap <= Reacquire_Time &&
+                     isNear( centerX, centerY, size, mCenterX[i], mCenterY[i], mSizes[i] ) )
+                    return i;
+            }
+
+            return -1;
+        }
+
+        private static boolean isNear( int x1, int y1, int size1, int x2, int y2, int size2 )
+        {
+            float limit = Reacquire_Distance * Math.max( size1, size2 );
+            float dx = x1 - x2;
+            float dy = y1 - y2;
+
+            return dx * dx + dy * dy <= limit * limit;
+        }
+    }
+
+    // Orders statistics by when their payloads were added to the session
+    private static final Comparator<PayloadStats> Sequence_Order = new Comparator<PayloadStats>()
+    {
+        @Override
+        public int compare( PayloadStats a, PayloadStats b )
+        {
+            return Long.compare( a.mSequence, b.mSequence );
+        }
+    };
+
+    /**
+     * Statistics for a single payload.
+     */
+    public static class PayloadStats
+    {
+        private final Payload mPayload;
+        private int mFacings;
+        private int mVisible;
+        private long mFirstSeen;
+        private long mLastSeen;
+        private long mTotalLifetime;
+        private long mMaxLifetime;
+
+        // Order in which the payload was added to the session, used to page through the session
+        private long mSequence;
+
+        // Recent track starts (active while the start counted as a facing) and ends (active until
+        // a re-acquisition matches them). These are created on the first track start or end.
+        private RecentTracks mRecentStarts;
+        private RecentTracks mRecentEnds;
+
+        PayloadStats( @NonNull Payload payload, long firstSeen )
+        {
+            mPayload = payload;
+            mFirstSeen = firstSeen;
+            mLastSeen = firstSeen;
+        }
+
+        PayloadStats( @NonNull Payload payload, int facings, int visible, long firstSeen, long lastSeen,
+                      long totalLifetime, long maxLifetime )
+        {
+            mPayload = payload;
+            mFacings = facings;
+            mVisible = visible;
+            mFirstSeen = firstSeen;
+            mLastSeen = lastSeen;
+            mTotalLifetime = totalLifetime;
+            mMaxLifetime = maxLifetime;
+        }
+
+        PayloadStats( @NonNull PayloadStats other )
+        {
+            mPayload = other.mPayload;
+            mFacings = other.mFacings;
+            mVisible = other.mVisible;
+            mFirstSeen = other.mFirstSeen;
+            mLastSeen = other.mLastSeen;
+            mTotalLifetime = other.mTotalLifetime;
+            mMaxLifetime = other.mMaxLifetime;
+            mSequence = other.mSequence;
+        }
+
+        @NonNull
+        public Payload getPayload()
+        {
+            return mPayload;
+        }
+
+        /**
+         * Get the number of physical facings seen for the payload: the tracks that started, less
+         * those that re-acquired an item that was already counted. This is an upper bound.
+         * @return Facing count
+         */
+        public int getFacingCount()
+        {
+            return mFacings;
+        }
+
+        /**
+         * Get the number of the payload's tracks that are currently in the cache.
+         * @return Visible count
+         */
+        public int getVisibleCount()
+        {
+            return mVisible;
+        }
+
+        /**
+         * Get the time the payload was first seen.
+         * @return Time in milliseconds, using the cache's time base
+         */
+        public long getFirstSeen()
+        {
+            return mFirstSeen;
+        }
+
+        /**
+         * Get the time the payload was last read.
+         * @return Time in milliseconds, using the cache's time base
+         */
+        public long getLastSeen()
+        {
+            return mLastSeen;
+        }
+
+        /**
+         * Get the combined lifetime of all of the payload's tracks that have ended.
+         * @return Time in milliseconds
+         */
+        public long getTotalLifetime()
+        {
+            return mTotalLifetime;
+        }
+
+        /**
+         * Get the lifetime of the payload's longest track that has ended.
+         * @return Time in milliseconds
+         */
+        public long getMaxLifetime()
+        {
+            return mMaxLifetime;
+        }
+    }
+
+    private final int mMaxPayloads;
+    private final Map<Payload, PayloadStats> mStats;
+
+    private long mTotalFacings = 0;
+    private long mEvictions = 0;
+    private long mNextSequence = 1;
+
+    // Corners of the track being recorded by update()
+    private final int[] mCorners = new int[TrackStore.Corner_Stride];
+
+    /**
+     * Create an aggregator that holds up to 50,000 payloads.
+     */
+    public SessionAggregator()
+    {
+        this( Default_Max_Payloads );
+    }
+
+    /**
+     * Create an aggregator.
+     * @param maxPayloads Maximum number of payloads held
+     */
+    public SessionAggregator( int maxPayloads )
+    {
+        mMaxPayloads = maxPayloads;
+
+        // Access ordered so the least recently seen payload is the eldest entry
+        mStats = new LinkedHashMap<Payload, PayloadStats>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<Payload, PayloadStats> eldest )
+            {
+                if ( size() <= mMaxPayloads )
+                    return false;
+
+                mEvictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Update the session with the most recent frame of a cache. Call this after
+     * ReaderResultCache.endFrame().
+     * @param cache Result cache
+     */
+    public synchronized void update( @NonNull ReaderResultCache cache )
+    {
+        long frameTime = cache.getFrameTime();
+
+        // Tracks that end are handled first, so a track that is re-acquired in the same frame
+        // matches them
+        List<ReaderResultCache.ReadData> removed = cache.getRemovedResults();
+
+        for ( int i = 0; i < removed.size(); i++ )
+        {
+            ReaderResultCache.ReadData data = removed.get( i );
+
+            data.getCorners( mCorners, 0 );
+            onTrackEnded( data.getPayload(), data.getStartTime(), data.mReadTime, mCorners, 0 );
+        }
+
+        List<ReaderResultCache.ReadData> added = cache.getNewResults();
+
+        for ( int i = 0; i < added.size(); i++ )
+        {
+            ReaderResultCache.ReadData data = added.get( i );
+
+            data.getCorners( mCorners, 0 );
+            onTrackStarted( data.getPayload(), frameTime, mCorners, 0 );
+        }
+
+        // Tracks that were read this frame keep their payloads' last seen times current
+        List<ReaderResultCache.ReadData> current = cache.getCurrentResults();
+
+        for ( int i = 0; i < current.size(); i++ )
+        {
+            ReaderResultCache.ReadData data = current.get( i );
+
+            if ( data.mReadTime == frameTime )
+                onTrackRead( data.getPayload(), frameTime );
+        }
+    }
+
+    /**
+     * Record the start of a track. The track counts as a new facing unless it re-acquires an item
+     * whose track recently ended nearby.
+     * @param payload Payload of the track
+     * @param time    Time the track started in milliseconds
+     * @param corners Array holding the track's corners
+     * @param offset  Offset of the corners in the array
+     */
+    public synchronized void onTrackStarted( @NonNull Payload payload, long time, @NonNull int[] corners,
+                                             int offset )
+    {
+        PayloadStats stats = mStats.get( payload );
+
+        if ( stats == null )
+        {
+            stats = new PayloadStats( payload, time );
+            stats.mSequence = mNextSequence++;
+            mStats.put( payload, stats );
+        }
+
+        // Payloads merged from a journal don't have these yet either
+        if ( stats.mRecentStarts == null )
+        {
+            stats.mRecentStarts = new RecentTracks();
+            stats.mRecentEnds = new RecentTracks();
+        }
+
+        int centerX = getCenter( corners, offset, 0 );
+        int centerY = getCenter( corners, offset, 1 );
+        int size = getSize( corners, offset );
+
+        stats.mVisible++;
+        stats.mLastSeen = Math.max( stats.mLastSeen, time );
+
+        int ended = stats.mRecentEnds.findBefore( time, centerX, centerY, size );
+
+        if ( ended >= 0 )
+        {
+            // The same item re-acquired. Its old track can't be matched again.
+            stats.mRecentEnds.mActive[ended] = false;
+            return;
+        }
+
+        stats.mFacings++;
+        mTotalFacings++;
+
+        stats.mRecentStarts.add( time, centerX, centerY, size );
+    }
+
+    /**
+     * Refresh the last seen time of a payload whose track was read.
+     * @param payload Payload of the track
+     * @param time    Time the track was read in milliseconds
+     */
+    public synchronized void onTrackRead( @NonNull Payload payload, long time )
+    {
+        PayloadStats stats = mStats.get( payload );
+
+        if ( stats != null )
+            stats.mLastSeen = Math.max( stats.mLastSeen, time );
+    }
+
+    /**
+     * Record the end of a track. If a track of the same payload started nearby after this one was
+     * last read, it was a tracker miss and the later track's facing is taken back.
+     * @param payload   Payload of the track
+     * @param startTime Time the track started in milliseconds
+     * @param endTime   Time the track was last read in milliseconds
+     * @param corners   Array holding the track's last corners
+     * @param offset    Offset of the corners in the array
+     */
+    public synchronized void onTrackEnded( @NonNull Payload payload, long startTime, long endTime,
+                                           @NonNull int[] corners, int offset )
+    {
+        PayloadStats stats = mStats.get( payload );
+
+        // The payload may have been evicted while its track was visible
+        if ( stats == null )
+            return;
+
+        long lifetime = endTime - startTime;
+
+        stats.mVisible = Math.max( 0, stats.mVisible - 1 );
+        stats.mLastSeen = Math.max( stats.mLastSeen, endTime );
+        stats.mTotalLifetime += lifetime;
+        stats.mMaxLifetime = Math.max( stats.mMaxLifetime, lifetime );
+
+        // Tracks merged from a journal have no recent tracks to match
+        if ( stats.mRecentStarts == null )
+            return;
+
+        int centerX = getCenter( corners, offset, 0 );
+        int centerY = getCenter( corners, offset, 1 );
+        int size = getSize( corners, offset );
+
+        int started = stats.mRecentStarts.findAfter( endTime, centerX, centerY, size );
+
+        if ( started >= 0 && stats.mFacings > 1 )
+        {
+            stats.mRecentStarts.mActive[started] = false;
+            stats.mFacings--;
+            mTotalFacings--;
+            return;
+        }
+
+        stats.mRecentEnds.add( endTime, centerX, centerY, size );
+    }
+
+    // Returns the mean of the corners' x (axis 0) or y (axis 1) coordinates
+    private static int getCenter( @NonNull int[] corners, int offset, int axis )
+    {
+        int sum = 0;
+
+        for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+            sum += corners[offset + i * 2 + axis];
+
+        return sum / TrackStore.Corner_Count;
+    }
+
+    // Returns the longer side of the corners' bounding box
+    private static int getSize( @NonNull int[] corners, int offset )
+    {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+        {
+            minX = Math.min( minX, corners[offset + i * 2] );
+            maxX = Math.max( maxX, corners[offset + i * 2] );
+            minY = Math.min( minY, corners[offset + i * 2 + 1] );
+            maxY = Math.max( maxY, corners[offset + i * 2 + 1] );
+        }
+
+        return Math.max( maxX - minX, maxY - minY );
+    }
+
+    /**
+     * Add previously collected statistics for a payload to the session, e.g. statistics recovered
+     * from a SessionJournal. The counts and lifetimes are added to any the session already has
+     * for the payload.
+     * @param other Statistics to add
+     */
+    public synchronized void merge( @NonNull PayloadStats other )
+    {
+        PayloadStats stats = mStats.get( other.mPayload );
+
+        if ( stats == null )
+        {
+            stats = new PayloadStats( other );
+            stats.mSequence = mNextSequence++;
+            mStats.put( other.mPayload, stats );
+        }
+        else
+        {
+            stats.mFacings += other.mFacings;
+            stats.mVisible += other.mVisible;
+            stats.mFirstSeen = Math.min( stats.mFirstSeen, other.mFirstSeen );
+            stats.mLastSeen = Math.max( stats.mLastSeen, other.mLastSeen );
+            stats.mTotalLifetime += other.mTotalLifetime;
+            stats.mMaxLifetime = Math.max( stats.mMaxLifetime, other.mMaxLifetime );
+        }
+
+        mTotalFacings += other.mFacings;
+    }
+
+    /**
+     * Get a copy of the statistics for a payload.
+     * @param payload Payload
+     * @return Statistics, or null if the payload hasn't been seen (or has been evicted).
+     */
+    @Nullable
+    public synchronized PayloadStats getStats( @NonNull Payload payload )
+    {
+        PayloadStats stats = mStats.get( payload );
+
+        return stats != null ? new PayloadStats( stats ) : null;
+    }
+
+    /**
+     * Get a copy of the statistics for every payload, ordered from least to most recently seen.
+     * @return List of statistics
+     */
+    @NonNull
+    public synchronized List<PayloadStats> getAllStats()
+    {
+        List<PayloadStats> list = new ArrayList<>( mStats.size() );
+
+        for ( PayloadStats stats : mStats.values() )
+            list.add( new PayloadStats( stats ) );
+
+        return list;
+    }
+
+    /**
+     * Get a copy of the statistics for a page of payloads, so the whole session can be read a
+     * page at a time without copying it all or holding its lock between pages. Pages are ordered
+     * by when each payload was added to the session, which unlike the order payloads were last
+     * seen in doesn't change between pages. Pass 0 for the first page and the value returned for
+     * the previous page after that. Payloads added while the pages are read are included in a
+     * later page.
+     * @param after    Position returned for the previous page, or 0 for the first page
+     * @param maxCount Maximum number of payloads in the page
+     * @param out      List that receives the page. It is cleared first and is empty once every
+     *                 page has been read.
+     * @return The position to pass for the next page.
+     */
+    public synchronized long getStatsPage( long after, int maxCount, @NonNull List<PayloadStats> out )
+    {
+        out.clear();
+
+        // Collect the session's own statistics for the earliest payloads after the given position,
+        // trimming to maxCount when the list doubles so it stays bounded
+        long limit = Long.MAX_VALUE;
+
+        for ( PayloadStats stats : mStats.values() )
+        {
+            if ( stats.mSequence <= after || stats.mSequence > limit )
+                continue;
+
+            out.add( stats );
+
+            if ( out.size() == 2 * maxCount )
+                limit = trim( out, maxCount );
+        }
+
+        trim( out, maxCount );
+
+        for ( int i = 0; i < out.size(); i++ )
+            out.set( i, new PayloadStats( out.get( i ) ) );
+
+        return out.isEmpty() ? after : out.get( out.size() - 1 ).mSequence;
+    }
+
+    // Sorts statistics by sequence and keeps the first maxCount, returning the last sequence kept
+    private static long trim( @NonNull List<PayloadStats> stats, int maxCount )
+    {
+        Collections.sort( stats, Sequence_Order );
+
+        if ( stats.size() > maxCount )
+            stats.subList( maxCount, stats.size() ).clear();
+
+        return stats.isEmpty() ? Long.MAX_VALUE : stats.get( stats.size() - 1 ).mSequence;
+    }
+
+    public synchronized int getPayloadCount()
+    {
+        return mStats.size();
+    }
+
+    /**
+     * Get the number of facings seen across all payloads, including payloads that have since
+     * been evicted.
+     * @return Facing count
+     */
+    public synchronized long getTotalFacings()
+    {
+        return mTotalFacings;
+    }
+
+    /**
+     * Get the number of payloads dropped because the payload cap was reached.
+     * @return Eviction count
+     */
+    public synchronized long getEvictionCount()
+    {
+        return mEvictions;
+    }
+
+    /**
+     * Clear all session data.
+     */
+    public synchronized void clear()
+    {
+        mStats.clear();
+        mTotalFacings = 0;
+        mEvictions = 0;
+    }
+}
@@ -0,0 +1,241 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads files written by SessionExporter in the binary format. Rows are read one at a time with
+ * next() into a single reused row, using a fixed size read buffer. The reader uses no Android
+ * classes so exports can be checked and processed on a plain JVM.
+ * <p>
+ * The accessors that apply to the file's table are valid after next() has returned true.
+ */
+public class SessionExportReader
+        implements Closeable
+{
+    private static final int Buffer_Size = 64 * 1024;
+
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate( Buffer_Size );
+    private boolean mEndOfStream = false;
+
+    private final SessionExporter.Table mTable;
+
+    private String mPayload;
+    private String mSymbology;
+    private int mFacings;
+    private long mFirstSeen;
+    private long mLastSeen;
+    private int mTrackId;
+    private long mTime;
+    private int mX;
+    private int mY;
+
+    /**
+     * Create a reader and read the file header.
+     * @param in Source stream. The stream is closed when the reader is closed.
+     * @throws IOException if the stream isn't a binary export
+     */
+    public SessionExportReader( @NonNull InputStream in ) throws IOException
+    {
+        this( Channels.newChannel( in ) );
+    }
+
+    /**
+     * Create a reader and read the file header.
+     * @param channel Source channel. The channel is closed when the reader is closed.
+     * @throws IOException if the channel isn't a binary export
+     */
+    public SessionExportReader( @NonNull ReadableByteChannel channel ) throws IOException
+    {
+        mChannel = channel;
+        mBuffer.flip();
+
+        if ( !fill( 9 ) || mBuffer.getInt() != SessionExporter.Magic )
+            throw new IOException( "Not a session export" );
+
+        int version = mBuffer.getInt();
+        if ( version != SessionExporter.Version )
+            throw new IOException( "Unsupported session export version " + version );
+
+        int table = mBuffer.get();
+        if ( table < 0 || table >= SessionExporter.Table.values().length )
+            throw new IOException( "Unknown session export table " + table );
+
+        mTable = SessionExporter.Table.values()[table];
+    }
+
+    @NonNull
+    public SessionExporter.Table getTable()
+    {
+        return mTable;
+    }
+
+    /**
+     * Read the next row.
+     * @return true if a row was read, false at the end of the file.
+     * @throws IOException if the file is truncated or damaged
+     */
+    public boolean next() throws IOException
+    {
+        if ( !fill( 1 ) )
+            return false;
+
+        // The row length is at most five bytes
+        fill( 5 );
+
+        int length = (int) getVarint();
+
+        if ( length <= 0 || length > SessionExporter.Max_Row_Size )
+            throw new IOException( "Invalid row length " + length );
+
+        if ( !fill( length ) )
+            throw new EOFException( "Truncated row" );
+
+        int end = mBuffer.position() + length;
+
+        if ( mTable == SessionExporter.Table.Items )
+        {
+            mPayload = getString();
+            mSymbology = getString();
+            mFacings = (int) getVarint();
+            mFirstSeen = unZigZag( getVarint() );
+            mLastSeen = unZigZag( getVarint() );
+        }
+        else
+        {
+            mTrackId = (int) getVarint();
+            mPayload = getString();
+            mTime = unZigZag( getVarint() );
+            mX = (int) unZigZag( getVarint() );
+            mY = (int) unZigZag( getVarint() );
+        }
+
+        if ( mBuffer.position() != end )
+            throw new IOException( "Invalid row" );
+
+        return true;
+    }
+
+    @NonNull
+    public String getPayload()
+    {
+        return mPayload;
+    }
+
+    @NonNull
+    public String getSymbology()
+    {
+        return mSymbology;
+    }
+
+    public int getFacingCount()
+    {
+        return mFacings;
+    }
+
+    public long getFirstSeen()
+    {
+        return mFirstSeen;
+    }
+
+    public long getLastSeen()
+    {
+        return mLastSeen;
+    }
+
+    public int getTrackId()
+    {
+        return mTrackId;
+    }
+
+    public long getTime()
+    {
+        return mTime;
+    }
+
+    public int getX()
+    {
+        return mX;
+    }
+
+    public int getY()
+    {
+        return mY;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mChannel.close();
+    }
+
+    /**
+     * Make sure at least count bytes are available in the buffer.
+     * @return false if the end of the stream was reached first.
+     */
+    private boolean fill( int count ) throws IOException
+    {
+        if ( mBuffer.remaining() >= count )
+            return true;
+
+        mBuffer.compact();
+
+        while ( mBuffer.position() < count && !mEndOfStream )
+        {
+            if ( mChannel.read( mBuffer ) < 0 )
+                mEndOfStream = true;
+        }
+
+        mBuffer.flip();
+
+        return mBuffer.remaining() >= count;
+    }
+
+    private long getVarint() throws IOException
+    {
+        long value = 0;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            if ( !mBuffer.hasRemaining() )
+                throw new EOFException( "Truncated value" );
+
+            byte b = mBuffer.get();
+            value |= (long) ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+                return value;
+        }
+
+        throw new IOException( "Invalid value" );
+    }
+
+    @NonNull
+    private String getString() throws IOException
+    {
+        int length = (int) getVarint();
+
+        if ( length < 0 || length > mBuffer.remaining() )
+            throw new IOException( "Invalid string length " + length );
+
+        String value = new String( mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), length,
+                                   StandardCharsets.UTF_8 );
+        mBuffer.position( mBuffer.position() + length );
+
+        return value;
+    }
+
+    private static long unZigZag( long value )
+    {
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+}
@@ -0,0 +1,433 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams stock-take results to CSV or to a compact binary format. Rows are encoded into a fixed
+ * size buffer that is written out whenever it fills, so the memory used by an export doesn't
+ * depend on the number of rows.
+ * <p>
+ * Each export holds one table:
+ * <ul>
+ *     <li>Items - one row per payload with its symbology, facing count and the first and last
+ *     times it was seen.</li>
+ *     <li>Trajectory - one row per read of a track with the center point of the read.</li>
+ * </ul>
+ * The binary format starts with the magic number "DMSX", the format version and the table. Each
+ * row follows as a varint length and the row's fields in the CSV column order. Strings are a
+ * varint length followed by UTF-8 bytes, counts and IDs are varints and times and coordinates
+ * are zig-zag varints. SessionExportReader reads the binary format.
+ * <p>
+ * Times are in milliseconds. The cache and session time their frames with the device's
+ * monotonic clock, whose times mean nothing once the device restarts, so setTimeOffset() can
+ * be used to convert them to another time base such as wall-clock time.
+ * <p>
+ * Strings longer than Max_String_Length bytes can't be exported. Rows holding one are skipped and
+ * the rest of the table is still written; close() then reports the skipped rows by throwing an
+ * IOException.
+ */
+public class SessionExporter
+        implements Closeable
+{
+    public enum Format
+    {
+        Csv,
+        Binary
+    }
+
+    public enum Table
+    {
+        Items,
+        Trajectory
+    }
+
+    static final int Magic = 0x444D5358;
+    static final int Version = 1;
+
+    // Strings longer than this (in UTF-8 bytes) can't be exported
+    static final int Max_String_Length = 1024;
+
+    // Largest possible row: two strings (doubled in size by CSV quoting) and five numbers with
+    // their separators
+    static final int Max_Row_Size = 2 * ( 2 * Max_String_Length + 2 + 5 ) + 5 * 21 + 5;
+
+    private static final int Buffer_Size = 64 * 1024;
+
+    // Payloads copied from the session at a time by writeItems()
+    private static final int Items_Page_Size = 256;
+
+    private static final byte[] Items_Header =
+            "payload,symbology,facings,first_seen,last_seen\n".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] Trajectory_Header =
+            "track,payload,time,x,y\n".getBytes( StandardCharsets.US_ASCII );
+
+    private final WritableByteChannel mChannel;
+    private final Format mFormat;
+    private final Table mTable;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate( Buffer_Size );
+
+    // Binary rows are encoded here first so their length can be written ahead of them
+    private final ByteBuffer mRow;
+
+    private final byte[] mDigits = new byte[20];
+
+    private long mRowCount = 0;
+    private long mSkippedCount = 0;
+    private long mTimeOffset = 0;
+
+    /**
+     * Create an exporter. The file header is written with the first rows.
+     * @param out    Destination stream. The stream is closed when the exporter is closed.
+     * @param format Output format
+     * @param table  Table to export
+     */
+    public SessionExporter( @NonNull OutputStream out, @NonNull Format format, @NonNull Table table )
+    {
+        this( Channels.newChannel( out ), format, table );
+    }
+
+    /**
+     * Create an exporter. The file header is written with the first rows.
+     * @param channel Destination channel. The channel is closed when the exporter is closed.
+     * @param format  Output format
+     * @param table   Table to export
+     */
+    public SessionExporter( @NonNull WritableByteChannel channel, @NonNull Format format, @NonNull Table table )
+    {
+        mChannel = channel;
+        mFormat = format;
+        mTable = table;
+
+        if ( format == Format.Binary )
+        {
+            mRow = ByteBuffer.allocate( Max_Row_Size );
+
+            mBuffer.putInt( Magic );
+            mBuffer.putInt( Version );
+            mBuffer.put( (byte) table.ordinal() );
+        }
+        else
+        {
+            mRow = null;
+            mBuffer.put( table == Table.Items ? Items_Header : Trajectory_Header );
+        }
+    }
+
+    /**
+     * Set the offset added to every time that is written, e.g. the difference between wall-clock
+     * time and the clock used to time frames. The default is 0.
+     * @param offset Offset in milliseconds
+     */
+    public void setTimeOffset( long offset )
+    {
+        mTimeOffset = offset;
+    }
+
+    /**
+     * Export every payload in a session to an Items table. The session's statistics are copied a
+     * page at a time and each page is written once the session has been unlocked, so the memory
+     * used doesn't grow with the number of payloads and frames don't wait for the writes.
+     * @param session Session to export
+     */
+    public void writeItems( @NonNull SessionAggregator session ) throws IOException
+    {
+        List<SessionAggregator.PayloadStats> page = new ArrayList<>( 2 * Items_Page_Size );
+        long position = session.getStatsPage( 0, Items_Page_Size, page );
+
+        while ( !page.isEmpty() )
+        {
+            for ( int i = 0; i < page.size(); i++ )
+                writeItem( page.get( i ) );
+
+            position = session.getStatsPage( position, Items_Page_Size, page );
+        }
+    }
+
+    /**
+     * Add a row to an Items table.
+     * @param stats Statistics for the payload
+     */
+    public void writeItem( @NonNull SessionAggregator.PayloadStats stats ) throws IOException
+    {
+        writeItem( stats.getPayload().getRepresentation(), String.valueOf( stats.getPayload().getSymbology() ),
+                   stats.getFacingCount(), stats.getFirstSeen(), stats.getLastSeen() );
+    }
+
+    /**
+     * Add a row to an Items table. The row is skipped if a string is too long to export.
+     * @param payload   Payload representation
+     * @param symbology Symbology name
+     * @param facings   Number of facings seen
+     * @param firstSeen Time the payload was first seen in milliseconds
+     * @param lastSeen  Time the payload was last seen in milliseconds
+     */
+    public void writeItem( @NonNull String payload, @NonNull String symbology, int facings,
+                           long firstSeen, long lastSeen ) throws IOException
+    {
+        checkTable( Table.Items );
+
+        byte[] payloadBytes = encode( payload );
+        byte[] symbologyBytes = encode( symbology );
+
+        if ( payloadBytes == null || symbologyBytes == null )
+        {
+            mSkippedCount++;
+            return;
+        }
+
+        beginRow();
+
+        if ( mFormat == Format.Binary )
+        {
+            putString( payloadBytes );
+            putString( symbologyBytes );
+            putVarint( mRow, facings );
+            putVarint( mRow, zigZag( firstSeen + mTimeOffset ) );
+            putVarint( mRow, zigZag( lastSeen + mTimeOffset ) );
+        }
+        else
+        {
+            putCsvString( payloadBytes );
+            mBuffer.put( (byte) ',' );
+            putCsvString( symbologyBytes );
+            mBuffer.put( (byte) ',' );
+            putDecimal( facings );
+            mBuffer.put( (byte) ',' );
+            putDecimal( firstSeen + mTimeOffset );
+            mBuffer.put( (byte) ',' );
+            putDecimal( lastSeen + mTimeOffset );
+        }
+
+        endRow();
+    }
+
+    /**
+     * Add a row to a Trajectory table. The row is skipped if the payload is too long to export.
+     * @param trackId ID of the track
+     * @param payload Payload representation
+     * @param time    Time of the read in milliseconds
+     * @param x       X coordinate of the read's center
+     * @param y       Y coordinate of the read's center
+     */
+    public void writePoint( int trackId, @NonNull String payload, long time, int x, int y ) throws IOException
+    {
+        checkTable( Table.Trajectory );
+
+        byte[] payloadBytes = encode( payload );
+
+        if ( payloadBytes == null )
+        {
+            mSkippedCount++;
+            return;
+        }
+
+        beginRow();
+
+        if ( mFormat == Format.Binary )
+        {
+            putVarint( mRow, trackId );
+            putString( payloadBytes );
+            putVarint( mRow, zigZag( time + mTimeOffset ) );
+            putVarint( mRow, zigZag( x ) );
+            putVarint( mRow, zigZag( y ) );
+        }
+        else
+        {
+            putDecimal( trackId );
+            mBuffer.put( (byte) ',' );
+            putCsvString( payloadBytes );
+            mBuffer.put( (byte) ',' );
+            putDecimal( time + mTimeOffset );
+            mBuffer.put( (byte) ',' );
+            putDecimal( x );
+            mBuffer.put( (byte) ',' );
+            putDecimal( y );
+        }
+
+        endRow();
+    }
+
+    /**
+     * Get the number of rows written.
+     * @return Row count
+     */
+    public long getRowCount()
+    {
+        return mRowCount;
+    }
+
+    /**
+     * Get the number of rows skipped because a string was too long to export.
+     * @return Skipped row count
+     */
+    public long getSkippedCount()
+    {
+        return mSkippedCount;
+    }
+
+    /**
+     * Write any buffered rows to the destination.
+     */
+    public void flush() throws IOException
+    {
+        mBuffer.flip();
+
+        while ( mBuffer.hasRemaining() )
+            mChannel.write( mBuffer );
+
+        mBuffer.clear();
+    }
+
+    /**
+     * Write any buffered rows and close the destination.
+     * @throws IOException if the rows can't be written or any rows were skipped.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            mChannel.close();
+        }
+
+        if ( mSkippedCount > 0 )
+            throw new IOException( "Rows skipped because a value was longer than " + Max_String_Length +
+                                   " bytes: " + mSkippedCount );
+    }
+
+    private void checkTable( @NonNull Table table )
+    {
+        if ( mTable != table )
+            throw new IllegalStateException( "Exporter was created for the " + mTable + " table" );
+    }
+
+    // Returns null if the value is too long to export
+    @Nullable
+    private static byte[] encode( @NonNull String value )
+    {
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+
+        return bytes.length <= Max_String_Length ? bytes : null;
+    }
+
+    private void beginRow() throws IOException
+    {
+        if ( mBuffer.remaining() < Max_Row_Size )
+            flush();
+
+        if ( mRow != null )
+            mRow.clear();
+    }
+
+    private void endRow()
+    {
+        if ( mFormat == Format.Binary )
+        {
+            mRow.flip();
+            putVarint( mBuffer, mRow.remaining() );
+            mBuffer.put( mRow );
+        }
+        else
+            mBuffer.put( (byte) '\n' );
+
+        mRowCount++;
+    }
+
+    private void putString( @NonNull byte[] value )
+    {
+        putVarint( mRow, value.length );
+        mRow.put( value );
+    }
+
+    /**
+     * Write a CSV field, quoting it if it contains a separator, quote or line break.
+     */
+    private void putCsvString( @NonNull byte[] value )
+    {
+        boolean quote = false;
+
+        for ( byte b : value )
+        {
+            if ( b == ',' || b == '"' || b == '\n' || b == '\r' )
+            {
+                quote = true;
+                break;
+            }
+        }
+
+        if ( !quote )
+        {
+            mBuffer.put( value );
+            return;
+        }
+
+        mBuffer.put( (byte) '"' );
+
+        for ( byte b : value )
+        {
+            if ( b == '"' )
+                mBuffer.put( (byte) '"' );
+
+            mBuffer.put( b );
+        }
+
+        mBuffer.put( (byte) '"' );
+    }
+
+    private void putDecimal( long value )
+    {
+        if ( value == 0 )
+        {
+            mBuffer.put( (byte) '0' );
+            return;
+        }
+
+        if ( value < 0 )
+            mBuffer.put( (byte) '-' );
+
+        // Digits are collected from least significant and negated to handle Long.MIN_VALUE
+        int count = 0;
+        long remaining = value > 0 ? -value : value;
+
+        while ( remaining != 0 )
+        {
+            mDigits[count++] = (byte) ( '0' - remaining % 10 );
+            remaining /= 10;
+        }
+
+        while ( count > 0 )
+            mBuffer.put( mDigits[--count] );
+    }
+
+    static long zigZag( long value )
+    {
+        return ( value << 1 ) ^ ( value >> 63 );
+    }
+
+    static void putVarint( @NonNull ByteBuffer buffer, long value )
+    {
+        while ( ( value & ~0x7FL ) != 0 )
+        {
+            buffer.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+
+        buffer.put( (byte) value );
+    }
+}
@@ -0,0 +1,789 @@
+package com.digimarc.dmstocktake;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.payload.Payload;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of track events that lets a stock-take survive the process being killed.
+ * <p>
+ * After each frame record() queues an event for every track that was started, read or removed.
+ * The events are written to the journal file by a background thread, so the frame thread never
+ * waits for I/O. Events come from a fixed pool; if the writer falls behind far enough that the
+ * pool runs dry further events are dropped and counted rather than blocking the caller.
+ * <p>
+ * Each record is framed by its length and a CRC32, so a record cut short by a crash is detected
+ * and ignored. The file is forced to storage about once a second. When the journal grows past a
+ * size threshold it is compacted: the current statistics of each payload and the state of each
+ * open track are written to a new file, which then replaces the journal.
+ * <p>
+ * When the journal is started it first replays the existing file, ends any tracks that were
+ * open when the process died and merges the recovered statistics into the session.
+ */
+public class SessionJournal
+{
+    private static final String TAG = "SessionJournal";
+
+    private static final String Journal_Name = "session.journal";
+    private static final String Compact_Name = "session.journal.tmp";
+
+    // File header: magic number ("DMSJ") and format version
+    private static final int Magic = 0x444D534A;
+    private static final int Version = 1;
+
+    // Record types
+    private static final byte Record_New = 1;
+    private static final byte Record_Updated = 2;
+    private static final byte Record_Removed = 3;
+    private static final byte Record_Stats = 4;
+    private static final byte Record_Open = 5;
+
+    // Event type used to stop the writer thread. This is never written to the file.
+    private static final byte Event_Stop = 0;
+
+    // Payload representations longer than this are not journaled
+    private static final int Max_Payload_Length = 1024;
+
+    // Largest possible record: length and CRC, type, the largest fixed fields (an Open record)
+    // and the payload
+    private static final int Max_Record_Size = 8 + 1 + 4 + 8 + 8 + 2 + TrackStore.Corner_Stride * 4 +
+                                               Max_Payload_Length;
+
+    private static final int Pool_Size = 4096;
+    private static final int Buffer_Size = 64 * 1024;
+
+    // Time between forcing the file to storage, in nanoseconds
+    private static final long Sync_Interval = 1_000_000_000L;
+
+    private static final long Compact_Threshold = 4 * 1024 * 1024;
+
+    private static final long Close_Timeout = 2000;
+
+    private static final class Event
+    {
+        byte mType;
+        int mId;
+        long mTime;
+        Payload mPayload;
+        final int[] mCorners = new int[TrackStore.Corner_Stride];
+    }
+
+    private interface RecordHandler
+    {
+        void onRecord( @NonNull ByteBuffer record ) throws IOException;
+    }
+
+    private static final class OpenTrack
+    {
+        Payload mPayload;
+        long mStartTime;
+        long mReadTime;
+        final int[] mCorners = new int[TrackStore.Corner_Stride];
+    }
+
+    private final File mDirectory;
+
+    private final BlockingQueue<Event> mFree = new ArrayBlockingQueue<>( Pool_Size );
+    private final BlockingQueue<Event> mPending = new ArrayBlockingQueue<>( Pool_Size + 1 );
+    private final Event mStop = new Event();
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mFailed = false;
+    private volatile boolean mResetRequested = false;
+
+    private Thread mThread;
+
+    // The following are only used by the writer thread
+
+    // Session state as recorded in the journal. This is what compaction writes out.
+    private final SessionAggregator mState = new SessionAggregator();
+    private final Map<Integer, OpenTrack> mOpenTracks = new HashMap<>();
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate( Buffer_Size );
+    private final CRC32 mCrc = new CRC32();
+    private int mRecordStart;
+
+    private FileChannel mChannel;
+    private FileChannel mOutput;
+
+    /**
+     * Create a journal.
+     * @param directory Directory that holds the journal file
+     */
+    public SessionJournal( @NonNull File directory )
+    {
+        mDirectory = directory;
+        mStop.mType = Event_Stop;
+
+        for ( int i = 0; i < Pool_Size; i++ )
+            mFree.add( new Event() );
+    }
+
+    /**
+     * Start the writer thread. The thread first recovers the session recorded in an existing
+     * journal and merges it into the session passed in.
+     * @param session Session that receives the recovered statistics
+     */
+    public void start( @NonNull final SessionAggregator session )
+    {
+        if ( mThread != null )
+            return;
+
+        mThread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runWriter( session );
+            }
+        }, TAG );
+
+        mThread.start();
+    }
+
+    /**
+     * Queue the track events of the most recent frame of a cache. Call this after
+     * ReaderResultCache.endFrame(). This never blocks.
+     * @param cache Result cache
+     */
+    public void record( @NonNull ReaderResultCache cache )
+    {
+        if ( mFailed )
+            return;
+
+        long frameTime = cache.getFrameTime();
+
+        List<ReaderResultCache.ReadData> removed = cache.getRemovedResults();
+
+        for ( int i = 0; i < removed.size(); i++ )
+        {
+            ReaderResultCache.ReadData data = removed.get( i );
+            enqueue( Record_Removed, data, data.mReadTime );
+        }
+
+        List<ReaderResultCache.ReadData> current = cache.getCurrentResults();
+
+        for ( int i = 0; i < current.size(); i++ )
+        {
+            ReaderResultCache.ReadData data = current.get( i );
+
+            // Tracks carried over without a read in this frame haven't changed
+            if ( data.mReadTime != frameTime )
+                continue;
+
+            enqueue( data.getStartTime() == frameTime ? Record_New : Record_Updated, data, frameTime );
+        }
+    }
+
+    /**
+     * Discard the recorded session. Tracks that are open when the journal is reset are no longer
+     * recorded.
+     */
+    public void reset()
+    {
+        mResetRequested = true;
+    }
+
+    /**
+     * Get the number of events dropped because the writer thread fell behind.
+     * @return Dropped event count
+     */
+    public long getDroppedCount()
+    {
+        return mDropped.get();
+    }
+
+    /**
+     * Write all queued events and stop the writer thread.
+     */
+    public void close()
+    {
+        if ( mThread == null )
+            return;
+
+        mPending.offer( mStop );
+
+        try
+        {
+            mThread.join( Close_Timeout );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        mThread = null;
+    }
+
+    /**
+     * Export the reads of the tracks recorded in the journal to a Trajectory table. The journal
+     * only holds reads made since it was last compacted, so older reads are not exported. This
+     * reads the journal file on the calling thread and may be called while the journal is
+     * being written.
+     * @param exporter Exporter for a Trajectory table
+     */
+    public void exportTrajectory( @NonNull final SessionExporter exporter ) throws IOException
+    {
+        File journal = new File( mDirectory, Journal_Name );
+        if ( !journal.exists() )
+            return;
+
+        final Map<Integer, String> payloads = new HashMap<>();
+        final int[] corners = new int[TrackStore.Corner_Stride];
+        final int[] center = new int[2];
+
+        readJournal( journal, new RecordHandler()
+        {
+            @Override
+            public void onRecord( @NonNull ByteBuffer record ) throws IOException
+            {
+                byte type = record.get();
+
+                if ( type != Record_New && type != Record_Updated && type != Record_Open )
+                {
+                    if ( type == Record_Removed )
+                        payloads.remove( record.getInt() );
+
+                    return;
+                }
+
+                int id = record.getInt();
+                long time = record.getLong();
+                String payload;
+
+                if ( type == Record_Updated )
+                    payload = payloads.get( id );
+                else
+                {
+                    // Open records hold the start time followed by the time of the last read
+                    if ( type == Record_Open )
+                        time = record.getLong();
+
+                    payload = getPayload( record ).getRepresentation();
+                    payloads.put( id, payload );
+                }
+
+                if ( payload == null )
+                    return;
+
+                getCorners( record, corners );
+                ReaderResultCache.Region.centerPoint( corners, 0, center, 0 );
+
+                exporter.writePoint( id, payload, time, center[0], center[1] );
+            }
+        } );
+    }
+
+    private void enqueue( byte type, @NonNull ReaderResultCache.ReadData data, long time )
+    {
+        Event event = mFree.poll();
+
+        if ( event == null )
+        {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        event.mType = type;
+        event.mId = data.getId();
+        event.mTime = time;
+        event.mPayload = type == Record_New ? data.getPayload() : null;
+
+        if ( type != Record_Removed )
+            data.getCorners( event.mCorners, 0 );
+
+        mPending.offer( event );
+    }
+
+    private void runWriter( @NonNull SessionAggregator session )
+    {
+        try
+        {
+            recover();
+
+            for ( SessionAggregator.PayloadStats stats : mState.getAllStats() )
+                session.merge( stats );
+
+            // Start from a compacted file so any damaged tail of the old journal is dropped
+            compact();
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, "Unable to open session journal", e );
+            fail();
+            return;
+        }
+
+        long lastSync = System.nanoTime();
+        boolean running = true;
+
+        while ( running )
+        {
+            Event event;
+
+            try
+            {
+                event = mPending.poll( Sync_Interval, TimeUnit.NANOSECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                break;
+            }
+
+            try
+            {
+                if ( mResetRequested )
+                {
+                    mResetRequested = false;
+                    mState.clear();
+                    mOpenTracks.clear();
+                    compact();
+                }
+
+                while ( event != null )
+                {
+                    if ( event == mStop )
+                    {
+                        running = false;
+                        break;
+                    }
+
+                    write( event );
+
+                    event.mPayload = null;
+                    mFree.offer( event );
+
+                    event = mPending.poll();
+                }
+
+                flushBuffer();
+
+                long now = System.nanoTime();
+
+                if ( !running || now - lastSync >= Sync_Interval )
+                {
+                    mChannel.force( false );
+                    lastSync = now;
+                }
+
+                if ( running && mChannel.size() >= Compact_Threshold )
+                    compact();
+            }
+            catch ( IOException e )
+            {
+                Log.w( TAG, "Unable to write session journal", e );
+                fail();
+                return;
+            }
+        }
+
+        closeChannel();
+    }
+
+    private void fail()
+    {
+        mFailed = true;
+        mPending.clear();
+        closeChannel();
+    }
+
+    private void write( @NonNull Event event ) throws IOException
+    {
+        switch ( event.mType )
+        {
+            case Record_New:
+                byte[] payload = event.mPayload.getRepresentation().getBytes( StandardCharsets.UTF_8 );
+
+                if ( payload.length > Max_Payload_Length )
+                {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+
+                startTrack( event.mId, event.mPayload, event.mTime, event.mCorners, 0 );
+
+                beginRecord( Record_New );
+                mBuffer.putInt( event.mId );
+                mBuffer.putLong( event.mTime );
+                putPayload( payload );
+                putCorners( event.mCorners );
+                endRecord();
+                break;
+
+            case Record_Updated:
+                if ( !updateTrack( event.mId, event.mTime, event.mCorners, 0 ) )
+                    return;
+
+                beginRecord( Record_Updated );
+                mBuffer.putInt( event.mId );
+                mBuffer.putLong( event.mTime );
+                putCorners( event.mCorners );
+                endRecord();
+                break;
+
+            case Record_Removed:
+                if ( !endTrack( event.mId, event.mTime ) )
+                    return;
+
+                beginRecord( Record_Removed );
+                mBuffer.putInt( event.mId );
+                mBuffer.putLong( event.mTime );
+                endRecord();
+                break;
+        }
+    }
+
+    private void startTrack( int id, @NonNull Payload payload, long time, @NonNull int[] corners, int offset )
+    {
+        OpenTrack track = new OpenTrack();
+        track.mPayload = payload;
+        track.mStartTime = time;
+        track.mReadTime = time;
+        System.arraycopy( corners, offset, track.mCorners, 0, TrackStore.Corner_Stride );
+
+        mOpenTracks.put( id, track );
+        mState.onTrackStarted( payload, time, track.mCorners, 0 );
+    }
+
+    private boolean updateTrack( int id, long time, @NonNull int[] corners, int offset )
+    {
+        OpenTrack track = mOpenTracks.get( id );
+
+        // The track's start was dropped or it was open when the journal was reset
+        if ( track == null )
+            return false;
+
+        track.mReadTime = time;
+        System.arraycopy( corners, offset, track.mCorners, 0, TrackStore.Corner_Stride );
+
+        mState.onTrackRead( track.mPayload, time );
+
+        return true;
+    }
+
+    private boolean endTrack( int id, long time )
+    {
+        OpenTrack track = mOpenTracks.remove( id );
+
+        if ( track == null )
+            return false;
+
+        mState.onTrackEnded( track.mPayload, track.mStartTime, time, track.mCorners, 0 );
+
+        return true;
+    }
+
+    /**
+     * Rebuild the session state from the journal file.
+     */
+    private void recover() throws IOException
+    {
+        // A compacted file that was never renamed is incomplete, and the journal is still intact
+        File compacted = new File( mDirectory, Compact_Name );
+        if ( compacted.exists() && !compacted.delete() )
+            throw new IOException( "Unable to delete " + compacted );
+
+        File journal = new File( mDirectory, Journal_Name );
+        if ( !journal.exists() )
+            return;
+
+        final int[] corners = new int[TrackStore.Corner_Stride];
+
+        int count = readJournal( journal, new RecordHandler()
+        {
+            @Override
+            public void onRecord( @NonNull ByteBuffer record )
+            {
+                replay( record, corners );
+            }
+        } );
+
+        // Tracks that were open when the process died ended with their last read
+        for ( OpenTrack track : mOpenTracks.values() )
+            mState.onTrackEnded( track.mPayload, track.mStartTime, track.mReadTime, track.mCorners, 0 );
+
+        mOpenTracks.clear();
+
+        Log.i( TAG, "Recovered " + count + " journal records" );
+    }
+
+    /**
+     * Read the valid records of a journal file. Reading stops at the first record that is
+     * incomplete or fails its CRC check.
+     * @return Number of records read
+     */
+    private static int readJournal( @NonNull File journal, @NonNull RecordHandler handler ) throws IOException
+    {
+        byte[] record = new byte[Max_Record_Size];
+        CRC32 crc32 = new CRC32();
+        int count = 0;
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( journal ) ) ) )
+        {
+            if ( in.readInt() != Magic || in.readInt() != Version )
+            {
+                Log.w( TAG, "Unrecognized session journal ignored" );
+                return 0;
+            }
+
+            while ( true )
+            {
+                int length = in.readInt();
+
+                if ( length <= 0 || length > record.length )
+                    break;
+
+                in.readFully( record, 0, length );
+                int crc = in.readInt();
+
+                crc32.reset();
+                crc32.update( record, 0, length );
+
+                if ( (int) crc32.getValue() != crc )
+                    break;
+
+                handler.onRecord( ByteBuffer.wrap( record, 0, length ) );
+                count++;
+            }
+        }
+        catch ( EOFException e )
+        {
+            // The last record was cut short, either by the process dying or because it is still
+            // being written
+        }
+
+        return count;
+    }
+
+    private void replay( @NonNull ByteBuffer record, @NonNull int[] corners )
+    {
+        byte type = record.get();
+
+        switch ( type )
+        {
+            case Record_New:
+            {
+                int id = record.getInt();
+                long time = record.getLong();
+                Payload payload = getPayload( record );
+                getCorners( record, corners );
+
+                startTrack( id, payload, time, corners, 0 );
+                break;
+            }
+
+            case Record_Updated:
+            {
+                int id = record.getInt();
+                long time = record.getLong();
+                getCorners( record, corners );
+
+                updateTrack( id, time, corners, 0 );
+                break;
+            }
+
+            case Record_Removed:
+            {
+                int id = record.getInt();
+                long time = record.getLong();
+
+                endTrack( id, time );
+                break;
+            }
+
+            case Record_Stats:
+            {
+                Payload payload = getPayload( record );
+                int facings = record.getInt();
+                int visible = record.getInt();
+                long firstSeen = record.getLong();
+                long lastSeen = record.getLong();
+                long totalLifetime = record.getLong();
+                long maxLifetime = record.getLong();
+
+                mState.merge( new SessionAggregator.PayloadStats( payload, facings, visible, firstSeen, lastSeen,
+                                                                  totalLifetime, maxLifetime ) );
+                break;
+            }
+
+            case Record_Open:
+            {
+                // An open track written by compaction. Its facing is already counted in the
+                // payload's statistics.
+                OpenTrack track = new OpenTrack();
+                int id = record.getInt();
+                track.mStartTime = record.getLong();
+                track.mReadTime = record.getLong();
+                track.mPayload = getPayload( record );
+                getCorners( record, track.mCorners );
+
+                mOpenTracks.put( id, track );
+                break;
+            }
+        }
+    }
+
+    /**
+     * Write the current session state to a new file and replace the journal with it.
+     */
+    private void compact() throws IOException
+    {
+        if ( mChannel != null )
+            flushBuffer();
+
+        File compacted = new File( mDirectory, Compact_Name );
+        File journal = new File( mDirectory, Journal_Name );
+
+        try ( RandomAccessFile file = new RandomAccessFile( compacted, "rw" ) )
+        {
+            file.setLength( 0 );
+            mOutput = file.getChannel();
+
+            mBuffer.putInt( Magic );
+            mBuffer.putInt( Version );
+
+            for ( SessionAggregator.PayloadStats stats : mState.getAllStats() )
+            {
+                byte[] payload = stats.getPayload().getRepresentation().getBytes( StandardCharsets.UTF_8 );
+
+                beginRecord( Record_Stats );
+                putPayload( payload );
+                mBuffer.putInt( stats.getFacingCount() );
+                mBuffer.putInt( stats.getVisibleCount() );
+                mBuffer.putLong( stats.getFirstSeen() );
+                mBuffer.putLong( stats.getLastSeen() );
+                mBuffer.putLong( stats.getTotalLifetime() );
+                mBuffer.putLong( stats.getMaxLifetime() );
+                endRecord();
+            }
+
+            for ( Map.Entry<Integer, OpenTrack> entry : mOpenTracks.entrySet() )
+            {
+                OpenTrack track = entry.getValue();
+
+                beginRecord( Record_Open );
+                mBuffer.putInt( entry.getKey() );
+                mBuffer.putLong( track.mStartTime );
+                mBuffer.putLong( track.mReadTime );
+                putPayload( track.mPayload.getRepresentation().getBytes( StandardCharsets.UTF_8 ) );
+                putCorners( track.mCorners );
+                endRecord();
+            }
+
+            flushBuffer();
+            mOutput.force( true );
+        }
+        finally
+        {
+            mOutput = mChannel;
+        }
+
+        closeChannel();
+
+        if ( !compacted.renameTo( journal ) )
+            throw new IOException( "Unable to replace " + journal );
+
+        RandomAccessFile file = new RandomAccessFile( journal, "rw" );
+        mChannel = file.getChannel();
+        mChannel.position( mChannel.size() );
+        mOutput = mChannel;
+    }
+
+    private void closeChannel()
+    {
+        if ( mChannel == null )
+            return;
+
+        try
+        {
+            mChannel.close();
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, "Unable to close session journal", e );
+        }
+
+        mChannel = null;
+        mOutput = null;
+    }
+
+    private void beginRecord( byte type ) throws IOException
+    {
+        if ( mBuffer.remaining() < Max_Record_Size )
+            flushBuffer();
+
+        mRecordStart = mBuffer.position();
+        mBuffer.putInt( 0 );
+        mBuffer.put( type );
+    }
+
+    private void endRecord()
+    {
+        int length = mBuffer.position() - mRecordStart - 4;
+
+        mBuffer.putInt( mRecordStart, length );
+
+        mCrc.reset();
+        mCrc.update( mBuffer.array(), mRecordStart + 4, length );
+        mBuffer.putInt( (int) mCrc.getValue() );
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        mBuffer.flip();
+
+        while ( mBuffer.hasRemaining() )
+            mOutput.write( mBuffer );
+
+        mBuffer.clear();
+    }
+
+    private void putPayload( @NonNull byte[] payload )
+    {
+        mBuffer.putShort( (short) payload.length );
+        mBuffer.put( payload );
+    }
+
+    private void putCorners( @NonNull int[] corners )
+    {
+        for ( int i = 0; i < TrackStore.Corner_Stride; i++ )
+            mBuffer.putInt( corners[i] );
+    }
+
+    @NonNull
+    private static Payload getPayload( @NonNull ByteBuffer record )
+    {
+        int length = record.getShort() & 0xffff;
+        String representation = new String( record.array(), record.arrayOffset() + record.position(), length,
+                                            StandardCharsets.UTF_8 );
+        record.position( record.position() + length );
+
+        return new Payload( representation );
+    }
+
+    private static void getCorners( @NonNull ByteBuffer record, @NonNull int[] corners )
+    {
+        for ( int i = 0; i < TrackStore.Corner_Stride; i++ )
+            corners[i] = record.getInt();
+    }
+}
@@ -0,0 +1,149 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.payload.Payload;
+
+import java.util.Arrays;
+
+/**
+ * Narrows the reader's symbology mask to the symbologies that are being read. Every enabled
+ * decoder adds to the cost of each frame, while a given store usually only uses two or three of
+ * the symbologies the app supports. Reads are counted per symbology over a sliding window, and a
+ * symbology joins the mask once it has been read a few times in the window, so a single stray
+ * read doesn't keep its decoder enabled. It stays in the mask until it hasn't been read at all
+ * for a whole window. While no symbology has been read often enough the full mask is used.
+ * <p>
+ * Frames are decoded in cycles. The first frame of each cycle is decoded with the full mask so
+ * symbologies that aren't in the mask can still be found, and the mask for the rest of the cycle
+ * is chosen then, so the mask changes at most twice a cycle and not at all while the full mask is
+ * in use.
+ * <p>
+ * getMask() is called before each decode and onRead() for each read. These may be called on
+ * different threads.
+ */
+public class SymbologySelector
+{
+    // One frame in this many is decoded with the full mask
+    private static final int Default_Probe_Interval = 15;
+
+    // Reads of a symbology in the window needed for it to join the mask
+    private static final int Default_Min_Hits = 3;
+
+    // The window is made up of this many buckets of this length (nanoseconds), 2 seconds in all
+    private static final int Bucket_Count = 8;
+    private static final long Bucket_Time = 250_000_000L;
+
+    private final int mFullMask;
+    private final int mProbeInterval;
+    private final int mMinHits;
+
+    // Reads of each symbology in each bucket, indexed by bucket and then by the symbology's bit in
+    // the mask, and the number of the bucket each slot holds
+    private final int[][] mHits = new int[Bucket_Count][Integer.SIZE];
+    private final long[] mBuckets = new long[Bucket_Count];
+
+    private long mFrameCount = 0;
+
+    // Mask used after the first frame of the current cycle
+    private int mMask;
+
+    /**
+     * Create a selector that decodes one frame in 15 with the full mask and adds a symbology to
+     * the mask once it has been read 3 times in 2 seconds.
+     * @param fullMask Mask of all the symbologies the reader may use
+     */
+    public SymbologySelector( int fullMask )
+    {
+        this( fullMask, Default_Probe_Interval, Default_Min_Hits );
+    }
+
+    /**
+     * Create a selector.
+     * @param fullMask      Mask of all the symbologies the reader may use
+     * @param probeInterval One frame in this many is decoded with the full mask
+     * @param minHits       Reads of a symbology in the last 2 seconds needed for it to join the
+     *                      mask
+     */
+    public SymbologySelector( int fullMask, int probeInterval, int minHits )
+    {
+        mFullMask = fullMask;
+        mProbeInterval = probeInterval;
+        mMinHits = minHits;
+        mMask = fullMask;
+
+        Arrays.fill( mBuckets, Long.MIN_VALUE );
+    }
+
+    /**
+     * Get the mask to decode a frame with.
+     * @param captureTime Time the frame was captured in nanoseconds
+     * @return Symbology mask
+     */
+    public synchronized int getMask( long captureTime )
+    {
+        if ( mFrameCount++ % mProbeInterval == 0 )
+        {
+            mMask = chooseMask( captureTime / Bucket_Time );
+            return mFullMask;
+        }
+
+        return mMask;
+    }
+
+    /**
+     * Record a read.
+     * @param payload     Payload read
+     * @param captureTime Time the frame it was read from was captured in nanoseconds
+     */
+    public synchronized void onRead( @NonNull Payload payload, long captureTime )
+    {
+        long bucket = captureTime / Bucket_Time;
+        int index = (int) Math.floorMod( bucket, (long) Bucket_Count );
+
+        // Reads older than the window are ignored rather than overwriting newer counts
+        if ( mBuckets[index] > bucket )
+            return;
+
+        if ( mBuckets[index] != bucket )
+        {
+            mBuckets[index] = bucket;
+            Arrays.fill( mHits[index], 0 );
+        }
+
+        int bits = payload.getSymbology().getBitmaskValue();
+
+        for ( int bit = 0; bit < Integer.SIZE; bit++ )
+        {
+            if ( ( bits & ( 1 << bit ) ) != 0 )
+                mHits[index][bit]++;
+        }
+    }
+
+    // Returns the mask of the symbologies read often enough in the window ending with a bucket
+    private int chooseMask( long bucket )
+    {
+        int mask = 0;
+
+        for ( int bit = 0; bit < Integer.SIZE; bit++ )
+        {
+            int hits = 0;
+
+            for ( int i = 0; i < Bucket_Count; i++ )
+            {
+                if ( mBuckets[i] > bucket - Bucket_Count && mBuckets[i] <= bucket )
+                    hits += mHits[i][bit];
+            }
+
+            // Symbologies already in the mask stay there while they are read at all
+            boolean inMask = mMask != mFullMask && ( mMask & ( 1 << bit ) ) != 0;
+
+            if ( hits >= mMinHits || ( inMask && hits > 0 ) )
+                mask |= 1 << bit;
+        }
+
+        mask &= mFullMask;
+
+        return mask != 0 ? mask : mFullMask;
+    }
+}
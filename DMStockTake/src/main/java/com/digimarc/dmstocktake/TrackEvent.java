@@ -0,0 +1,144 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.payload.Payload;
+
+/**
+ * Describes a change to a track, passed to TrackListener callbacks. The cache reuses a single
+ * event object, so the values are only valid during the callback.
+ */
+public final class TrackEvent
+{
+    private ReaderResultCache.ReadData mTrack;
+    private long mFrameTime;
+
+    private final int[] mCornerDeltas = new int[TrackStore.Corner_Stride];
+    private int mDeltaX;
+    private int mDeltaY;
+
+    TrackEvent()
+    {
+    }
+
+    /**
+     * Get the track the event is for. The track is only valid during the callback.
+     * @return Track data
+     */
+    @NonNull
+    public ReaderResultCache.ReadData getTrack()
+    {
+        return mTrack;
+    }
+
+    public int getId()
+    {
+        return mTrack.getId();
+    }
+
+    @NonNull
+    public Payload getPayload()
+    {
+        return mTrack.getPayload();
+    }
+
+    /**
+     * Get the time of the frame in which the event occurred.
+     * @return Frame time in milliseconds, using the cache's time base
+     */
+    public long getFrameTime()
+    {
+        return mFrameTime;
+    }
+
+    /**
+     * Get the horizontal movement of the track's center. This is 0 for started and lost tracks.
+     * @return Movement in pixels
+     */
+    public int getDeltaX()
+    {
+        return mDeltaX;
+    }
+
+    /**
+     * Get the vertical movement of the track's center. This is 0 for started and lost tracks.
+     * @return Movement in pixels
+     */
+    public int getDeltaY()
+    {
+        return mDeltaY;
+    }
+
+    public int getCornerDeltaX( int corner )
+    {
+        return mCornerDeltas[corner * 2];
+    }
+
+    public int getCornerDeltaY( int corner )
+    {
+        return mCornerDeltas[corner * 2 + 1];
+    }
+
+    /**
+     * Set the event for a track that started or was lost.
+     */
+    void set( @NonNull ReaderResultCache.ReadData track, long frameTime )
+    {
+        mTrack = track;
+        mFrameTime = frameTime;
+        mDeltaX = 0;
+        mDeltaY = 0;
+
+        for ( int i = 0; i < TrackStore.Corner_Stride; i++ )
+            mCornerDeltas[i] = 0;
+    }
+
+    /**
+     * Set the event for a track that was updated, calculating the change in its reported
+     * (smoothed) region.
+     * @return true if the region changed
+     */
+    boolean setUpdate( @NonNull ReaderResultCache.ReadData track, long frameTime, @NonNull TrackStore store )
+    {
+        int offset = track.getSlot() * TrackStore.Corner_Stride;
+        boolean changed = false;
+
+        for ( int i = 0; i < TrackStore.Corner_Stride; i++ )
+        {
+            int delta = store.mSmoothed[offset + i] - store.mPreviousCorners[offset + i];
+
+            mCornerDeltas[i] = delta;
+            changed |= delta != 0;
+        }
+
+        if ( !changed )
+            return false;
+
+        mTrack = track;
+        mFrameTime = frameTime;
+
+        // The center is the average of the corners, calculated the same way as the store's
+        int currentX = 0;
+        int currentY = 0;
+        int previousX = 0;
+        int previousY = 0;
+
+        for ( int i = 0; i < TrackStore.Corner_Count; i++ )
+        {
+            currentX += store.mSmoothed[offset + i * 2];
+            currentY += store.mSmoothed[offset + i * 2 + 1];
+            previousX += store.mPreviousCorners[offset + i * 2];
+            previousY += store.mPreviousCorners[offset + i * 2 + 1];
+        }
+
+        mDeltaX = currentX / TrackStore.Corner_Count - previousX / TrackStore.Corner_Count;
+        mDeltaY = currentY / TrackStore.Corner_Count - previousY / TrackStore.Corner_Count;
+
+        return true;
+    }
+
+    void clear()
+    {
+        mTrack = null;
+    }
+}
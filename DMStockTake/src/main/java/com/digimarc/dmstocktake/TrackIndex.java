@@ -0,0 +1,323 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.digimarc.dms.payload.Payload;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two level lookup structure used by ReaderResultCache to find duplicate reads. The first level
+ * is keyed by payload and the second level is a uniform grid of image cells. Each track is
+ * registered in every cell covered by the bounding box of its expanded region, so a duplicate
+ * search only needs to look at tracks with the same payload in the cells covered by the new read.
+ * <p>
+ * Tracks are indexed by their predicted expanded region for the frame being processed. The index
+ * is rebuilt from the current results and the tentative tracks at the start of each frame. Tracks
+ * that are matched during a frame, or evicted to make room for a new track, are flagged rather
+ * than removed, which keeps removal O(1).
+ * <p>
+ * Both levels share a single open hash table keyed on payload hash and cell coordinates. Entries
+ * are chained through int arrays and the table is invalidated with a stamp rather than cleared,
+ * so rebuilding the index does not allocate once it has reached its working size.
+ */
+class TrackIndex
+{
+    // Size of a grid cell in pixels. Cells this size hold only a handful of codes even on a
+    // dense shelf.
+    private static final int Cell_Size = 128;
+
+    private static final int Initial_Buckets = 256;
+    private static final int Initial_Entries = 256;
+
+    private int[] mBucketHead = new int[Initial_Buckets];
+    private int[] mBucketStamp = new int[Initial_Buckets];
+    private int mStamp = 1;
+
+    private int[] mEntrySlot = new int[Initial_Entries];
+    private int[] mEntryNext = new int[Initial_Entries];
+    private int[] mEntryHash = new int[Initial_Entries];
+    private int[] mEntryCellX = new int[Initial_Entries];
+    private int[] mEntryCellY = new int[Initial_Entries];
+    private int mEntryCount = 0;
+
+    /**
+     * Rebuilds the index from lists of confirmed and tentative tracks. The position of each track
+     * within the lists is recorded so that lookups can return the same match a linear scan of the
+     * lists would. Tentative tracks come after all confirmed tracks, so a read that overlaps both
+     * is matched to the confirmed track.
+     * @param tracks    Confirmed tracks to index
+     * @param tentative Tentative tracks to index
+     * @param store     Store that holds the track data
+     */
+    void rebuild( @NonNull List<ReaderResultCache.ReadData> tracks,
+                  @NonNull List<ReaderResultCache.ReadData> tentative, @NonNull TrackStore store )
+    {
+        clear();
+
+        for ( int i = 0; i < tracks.size(); i++ )
+        {
+            int slot = tracks.get( i ).getSlot();
+            store.mOrder[slot] = i;
+            add( store, slot );
+        }
+
+        for ( int i = 0; i < tentative.size(); i++ )
+        {
+            int slot = tentative.get( i ).getSlot();
+            store.mOrder[slot] = tracks.size() + i;
+            add( store, slot );
+        }
+    }
+
+    /**
+     * Removes all tracks from the index.
+     */
+    void clear()
+    {
+        mStamp++;
+        mEntryCount = 0;
+    }
+
+    /**
+     * Finds the earliest indexed track with the same payload as a new read whose regions overlap
+     * the new read. Tracks that have already been matched during this frame are skipped.
+     * @param store   Store that holds the track data
+     * @param corners Corner array holding the new read's region
+     * @param offset  Offset of the new read's first corner
+     * @param center  Array holding the new read's center point
+     * @param centerOffset Offset of the new read's center point
+     * @param payload Payload of the new read
+     * @param frame   Current frame number
+     * @return The slot of the matching track or -1 if there is none.
+     */
+    int findMatch( @NonNull TrackStore store, @NonNull int[] corners, int offset,
+                   @NonNull int[] center, int centerOffset, @NonNull Payload payload, int frame )
+    {
+        return scan( store, corners, offset, center, centerOffset, payload, frame, null, 0 );
+    }
+
+    /**
+     * Collects every indexed track that could be matched to a new read, i.e. tracks with the same
+     * payload whose regions overlap the new read and that have not been matched during this frame.
+     * Slots already present in the output array are not added again.
+     * @param store   Store that holds the track data
+     * @param corners Corner array holding the new read's region
+     * @param offset  Offset of the new read's first corner
+     * @param center  Array holding the new read's center point
+     * @param centerOffset Offset of the new read's center point
+     * @param payload Payload of the new read
+     * @param frame   Current frame number
+     * @param out     Array that receives the candidate slots. It must be large enough to hold
+     *                every indexed track.
+     * @param count   Number of slots already in the output array
+     * @return The number of slots in the output array.
+     */
+    int collectMatches( @NonNull TrackStore store, @NonNull int[] corners, int offset,
+                        @NonNull int[] center, int centerOffset, @NonNull Payload payload, int frame,
+                        @NonNull int[] out, int count )
+    {
+        return scan( store, corners, offset, center, centerOffset, payload, frame, out, count );
+    }
+
+    /**
+     * Determines whether a track overlaps a new read. The criteria are the same as those used by
+     * ReaderResultCache.findDuplicate(): the read's center lies within the track's predicted
+     * expanded region or the track's predicted center lies within the read's region. The read's
+     * bounding box is passed in so callers testing a read against several tracks find it once.
+     */
+    static boolean overlaps( @NonNull TrackStore store, int slot, @NonNull int[] corners, int offset,
+                             int readMinX, int readMinY, int readMaxX, int readMaxY,
+                             @NonNull int[] center, int centerOffset )
+    {
+        int b = slot * ReaderResultCache.Region.Bounds_Stride;
+
+        return ReaderResultCache.Region.containsPoint( store.mPredictedExpanded, slot * TrackStore.Corner_Stride,
+                                                       store.mPredictedBounds[b], store.mPredictedBounds[b + 1],
+                                                       store.mPredictedBounds[b + 2], store.mPredictedBounds[b + 3],
+                                                       center[centerOffset], center[centerOffset + 1] ) ||
+               ReaderResultCache.Region.containsPoint( corners, offset, readMinX, readMinY, readMaxX, readMaxY,
+                                                       store.mPredictedCenters[slot * 2],
+                                                       store.mPredictedCenters[slot * 2 + 1] );
+    }
+
+    // Walks the cells under a read. With no output array the earliest matching track is returned,
+    // otherwise all matching tracks are appended to the array and the new count is returned.
+    private int scan( @NonNull TrackStore store, @NonNull int[] corners, int offset,
+                      @NonNull int[] center, int centerOffset, @NonNull Payload payload, int frame,
+                      @Nullable int[] out, int count )
+    {
+        int hash = payload.hashCode();
+
+        // A track overlaps the new read if the new read's center lies in the track's expanded
+        // region or the track's center lies in the new read's region. In both cases the track's
+        // expanded bounding box intersects the new read's bounding box, so only the cells under
+        // the new read need to be searched.
+        int readMinX = min( corners, offset );
+        int readMinY = min( corners, offset + 1 );
+        int readMaxX = max( corners, offset );
+        int readMaxY = max( corners, offset + 1 );
+
+        int minCellX = cell( readMinX );
+        int maxCellX = cell( readMaxX );
+        int minCellY = cell( readMinY );
+        int maxCellY = cell( readMaxY );
+
+        int best = -1;
+        int bestOrder = Integer.MAX_VALUE;
+
+        for ( int cy = minCellY; cy <= maxCellY; cy++ )
+        {
+            for ( int cx = minCellX; cx <= maxCellX; cx++ )
+            {
+                int bucket = bucket( hash, cx, cy, mBucketHead.length );
+
+                if ( mBucketStamp[bucket] != mStamp )
+                    continue;
+
+                for ( int e = mBucketHead[bucket]; e >= 0; e = mEntryNext[e] )
+                {
+                    if ( mEntryHash[e] != hash || mEntryCellX[e] != cx || mEntryCellY[e] != cy )
+                        continue;
+
+                    int slot = mEntrySlot[e];
+
+                    if ( store.mMatchedFrame[slot] == frame || store.mEvicted[slot] )
+                        continue;
+
+                    if ( out == null && store.mOrder[slot] >= bestOrder )
+                        continue;
+
+                    if ( !payload.equals( store.mPayloads[slot] ) ||
+                         !overlaps( store, slot, corners, offset, readMinX, readMinY, readMaxX, readMaxY,
+                                    center, centerOffset ) )
+                        continue;
+
+                    if ( out == null )
+                    {
+                        best = slot;
+                        bestOrder = store.mOrder[slot];
+                    }
+                    else if ( !contains( out, count, slot ) )
+                        out[count++] = slot;
+                }
+            }
+        }
+
+        return out == null ? best : count;
+    }
+
+    private static boolean contains( @NonNull int[] values, int count, int value )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( values[i] == value )
+                return true;
+        }
+
+        return false;
+    }
+
+    private void add( @NonNull TrackStore store, int slot )
+    {
+        int hash = store.mPayloadHashes[slot];
+        int b = slot * ReaderResultCache.Region.Bounds_Stride;
+
+        int minCellX = cell( store.mPredictedBounds[b] );
+        int minCellY = cell( store.mPredictedBounds[b + 1] );
+        int maxCellX = cell( store.mPredictedBounds[b + 2] );
+        int maxCellY = cell( store.mPredictedBounds[b + 3] );
+
+        for ( int cy = minCellY; cy <= maxCellY; cy++ )
+        {
+            for ( int cx = minCellX; cx <= maxCellX; cx++ )
+            {
+                if ( mEntryCount == mEntrySlot.length )
+                    growEntries();
+
+                // Keep the load factor at or below 1/2
+                if ( mEntryCount >= mBucketHead.length / 2 )
+                    growBuckets();
+
+                int e = mEntryCount++;
+                mEntrySlot[e] = slot;
+                mEntryHash[e] = hash;
+                mEntryCellX[e] = cx;
+                mEntryCellY[e] = cy;
+
+                link( e );
+            }
+        }
+    }
+
+    private void link( int entry )
+    {
+        int bucket = bucket( mEntryHash[entry], mEntryCellX[entry], mEntryCellY[entry], mBucketHead.length );
+
+        if ( mBucketStamp[bucket] != mStamp )
+        {
+            mBucketStamp[bucket] = mStamp;
+            mBucketHead[bucket] = -1;
+        }
+
+        mEntryNext[entry] = mBucketHead[bucket];
+        mBucketHead[bucket] = entry;
+    }
+
+    private void growEntries()
+    {
+        int length = mEntrySlot.length * 2;
+
+        mEntrySlot = Arrays.copyOf( mEntrySlot, length );
+        mEntryNext = Arrays.copyOf( mEntryNext, length );
+        mEntryHash = Arrays.copyOf( mEntryHash, length );
+        mEntryCellX = Arrays.copyOf( mEntryCellX, length );
+        mEntryCellY = Arrays.copyOf( mEntryCellY, length );
+    }
+
+    private void growBuckets()
+    {
+        int length = mBucketHead.length * 2;
+
+        mBucketHead = new int[length];
+        mBucketStamp = new int[length];
+
+        // Relink the existing entries into the larger table
+        for ( int e = 0; e < mEntryCount; e++ )
+            link( e );
+    }
+
+    private static int bucket( int hash, int cellX, int cellY, int buckets )
+    {
+        int h = ( hash * 31 + cellX ) * 31 + cellY;
+        h ^= h >>> 16;
+        h *= 0x7feb352d;
+        h ^= h >>> 15;
+
+        return h & ( buckets - 1 );
+    }
+
+    private static int cell( int coordinate )
+    {
+        return Math.floorDiv( coordinate, Cell_Size );
+    }
+
+    // Min & max of the x (offset) or y (offset + 1) coordinates of a region's corners
+    private static int min( @NonNull int[] corners, int offset )
+    {
+        int value = corners[offset];
+        for ( int i = 1; i < TrackStore.Corner_Count; i++ )
+            value = Math.min( value, corners[offset + i * 2] );
+        return value;
+    }
+
+    private static int max( @NonNull int[] corners, int offset )
+    {
+        int value = corners[offset];
+        for ( int i = 1; i < TrackStore.Corner_Count; i++ )
+            value = Math.max( value, corners[offset + i * 2] );
+        return value;
+    }
+}
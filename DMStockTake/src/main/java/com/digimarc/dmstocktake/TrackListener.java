@@ -0,0 +1,32 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives changes to the tracks held by a ReaderResultCache. Listeners are called on the thread
+ * that processes frames, from within endFrame(), once the frame's results are final. A frame in
+ * which no track started, moved or was lost produces no calls.
+ * <p>
+ * The event object is reused for every call, so it must not be kept once the call returns.
+ */
+public interface TrackListener
+{
+    /**
+     * Called when a read starts a new track.
+     * @param event Event for the new track
+     */
+    void onTrackStarted( @NonNull TrackEvent event );
+
+    /**
+     * Called when a track is matched by a read whose region differs from the track's previous
+     * region. The event holds the change in region.
+     * @param event Event for the updated track
+     */
+    void onTrackUpdated( @NonNull TrackEvent event );
+
+    /**
+     * Called when a track is removed because it hasn't been read within the cache's time limit.
+     * @param event Event for the lost track
+     */
+    void onTrackLost( @NonNull TrackEvent event );
+}
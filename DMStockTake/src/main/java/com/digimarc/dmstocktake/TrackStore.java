@@ -0,0 +1,505 @@
+package com.digimarc.dmstocktake;
+
+import android.graphics.Point;
+import androidx.annotation.NonNull;
+
+import com.digimarc.dms.payload.Payload;
+import com.digimarc.dms.readers.DataDictionary;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Primitive backed storage for the tracks held by ReaderResultCache. Track geometry (corners,
+ * center point and expanded corners) is kept in flat int arrays indexed by track slot. Slots
+ * are handed out from a free list and reused once a track is removed, so once the store has
+ * grown to the number of codes in view no further allocations are made.
+ * <p>
+ * Each slot has a single ReadData object which acts as a view over the arrays for that slot.
+ * <p>
+ * Each track also carries a constant velocity estimate for its center point. At the start of a
+ * frame the expanded region and center of every track are moved to where the velocity predicts
+ * they will be at the frame time, and new reads are matched against those predicted positions.
+ * <p>
+ * Confirmed tracks are also kept on a doubly linked list, threaded through the slots, in the
+ * order they were last read. Moving a track to the end of the list when it is read and finding
+ * the track that has gone longest without a read are both O(1), which lets the cache cap the
+ * number of tracks it holds.
+ */
+class TrackStore
+{
+    // Read regions are quadrilaterals
+    static final int Corner_Count = 4;
+
+    // Number of ints used by a slot in the corner arrays (x & y for each corner)
+    static final int Corner_Stride = Corner_Count * 2;
+
+    private static final int Initial_Capacity = 64;
+
+    // Link value of a slot that isn't on the least recently read list
+    private static final int Unlinked = -2;
+
+    // Cutoff frequency (Hz) of the filter applied to corner speeds in the One-Euro corner filter
+    private static final float Rate_Cutoff = 1f;
+
+    // Gain applied to the velocity correction when a track is matched (the beta term of an
+    // alpha-beta filter whose position term is the new read itself)
+    private static final float Velocity_Gain = 0.5f;
+
+    // Limit on velocity (pixels per millisecond) so a bad match can't throw a track off screen
+    private static final float Max_Velocity = 4f;
+
+    int[] mCorners;
+    int[] mCenters;
+    int[] mExpanded;
+
+    // Velocity (x & y in pixels per millisecond) and the predicted expanded region, its bounding
+    // box and center for the current frame
+    float[] mVelocities;
+    int[] mPredictedExpanded;
+    int[] mPredictedBounds;
+    int[] mPredictedCenters;
+
+    Payload[] mPayloads;
+    int[] mPayloadHashes;
+    DataDictionary[] mMetadata;
+
+    // Frame number in which the slot was last matched to a read, and the position of the slot in
+    // the current results list. These are used by TrackIndex.
+    int[] mMatchedFrame;
+    int[] mOrder;
+
+    // Time (in milliseconds) and frame number at which each track was first read
+    long[] mStartTimes;
+    int[] mStartFrames;
+
+    // Confirmation state of each track: whether it has been confirmed, the number of reads while
+    // it was tentative and the frame of its first read. Confidence is an exponentially weighted
+    // hit rate that rises towards 1 in frames where the track is read.
+    boolean[] mConfirmed;
+    int[] mHits;
+    int[] mFirstFrames;
+    float[] mConfidence;
+
+    // Corner filter state: the filtered corners and their filtered rates of change (pixels per
+    // second). mSmoothed holds the filtered corners rounded for reporting and mPreviousCorners
+    // the reported corners before the most recent read, used for the region change reported to
+    // TrackListeners. mAnchors holds the reported corners at the last time the track moved.
+    float[] mFiltered;
+    float[] mFilteredRates;
+    int[] mSmoothed;
+    int[] mPreviousCorners;
+    int[] mAnchors;
+    boolean[] mStationary;
+
+    // Least recently read list of confirmed tracks. The head is the track that has gone longest
+    // without a read. Evicted tracks have been taken off the list to make room for a new track
+    // and are removed from the results at the end of the frame.
+    private int[] mLruPrevious;
+    private int[] mLruNext;
+    private int mLruHead = -1;
+    private int mLruTail = -1;
+    private int mLruCount = 0;
+    boolean[] mEvicted;
+
+    private ReaderResultCache.ReadData[] mViews;
+
+    private int[] mFreeList;
+    private int mFreeCount = 0;
+    private int mUsed = 0;
+
+    TrackStore()
+    {
+        allocateArrays( Initial_Capacity );
+    }
+
+    /**
+     * Get a free slot, growing the store if needed.
+     * @return Slot index
+     */
+    int allocate()
+    {
+        int slot;
+
+        if ( mFreeCount > 0 )
+            slot = mFreeList[--mFreeCount];
+        else
+        {
+            if ( mUsed == mViews.length )
+                allocateArrays( mViews.length * 2 );
+
+            slot = mUsed++;
+        }
+
+        if ( mViews[slot] == null )
+            mViews[slot] = new ReaderResultCache.ReadData( this, slot );
+
+        mMatchedFrame[slot] = -1;
+        mConfirmed[slot] = false;
+        mHits[slot] = 0;
+        mConfidence[slot] = 0;
+        mEvicted[slot] = false;
+        mLruPrevious[slot] = Unlinked;
+        mVelocities[slot * 2] = 0;
+        mVelocities[slot * 2 + 1] = 0;
+
+        return slot;
+    }
+
+    /**
+     * Return a slot to the free list. The slot's view must no longer be referenced by any of the
+     * cache's result lists. The payload is kept until the slot is reused so views held by the
+     * application still have one.
+     * @param slot Slot index
+     */
+    void release( int slot )
+    {
+        unlink( slot );
+
+        mMetadata[slot] = null;
+        mFreeList[mFreeCount++] = slot;
+    }
+
+    @NonNull
+    ReaderResultCache.ReadData getView( int slot )
+    {
+        return mViews[slot];
+    }
+
+    /**
+     * Store a read in a slot. The center point and expanded corners are derived from the corners.
+     * @param slot     Slot index
+     * @param payload  Payload read
+     * @param metadata Metadata that accompanied the payload
+     * @param corners  Corner array
+     * @param offset   Offset of the first corner in the array
+     * @param policy   Policy that provides the expansion factors
+     */
+    void set( int slot, @NonNull Payload payload, @NonNull DataDictionary metadata,
+              @NonNull int[] corners, int offset, @NonNull TrackingPolicy policy )
+    {
+        if ( mPayloads[slot] != payload )
+        {
+            mPayloads[slot] = payload;
+            mPayloadHashes[slot] = payload.hashCode();
+        }
+
+        mMetadata[slot] = metadata;
+
+        System.arraycopy( corners, offset, mCorners, slot * Corner_Stride, Corner_Stride );
+
+        ReaderResultCache.Region.centerPoint( mCorners, slot * Corner_Stride, mCenters, slot * 2 );
+        updateExpanded( slot, policy );
+    }
+
+    /**
+     * Recalculate the expanded region for a slot.
+     * @param slot   Slot index
+     * @param policy Policy that provides the expansion factors
+     */
+    void updateExpanded( int slot, @NonNull TrackingPolicy policy )
+    {
+        ReaderResultCache.Region.expand( mCorners, slot * Corner_Stride, mExpanded, slot * Corner_Stride, policy );
+    }
+
+    /**
+     * Update a track's velocity from a new read. This must be called before the read is stored
+     * with set().
+     * @param slot    Slot index
+     * @param centerX X coordinate of the new read's center
+     * @param centerY Y coordinate of the new read's center
+     * @param elapsed Time in milliseconds since the track was last read
+     */
+    void updateVelocity( int slot, int centerX, int centerY, long elapsed )
+    {
+        if ( elapsed <= 0 )
+            return;
+
+        float vx = mVelocities[slot * 2];
+        float vy = mVelocities[slot * 2 + 1];
+
+        // Difference between where the read was found and where the velocity put it
+        float residualX = centerX - ( mCenters[slot * 2] + vx * elapsed );
+        float residualY = centerY - ( mCenters[slot * 2 + 1] + vy * elapsed );
+
+        vx += Velocity_Gain * residualX / elapsed;
+        vy += Velocity_Gain * residualY / elapsed;
+
+        mVelocities[slot * 2] = Math.max( -Max_Velocity, Math.min( Max_Velocity, vx ) );
+        mVelocities[slot * 2 + 1] = Math.max( -Max_Velocity, Math.min( Max_Velocity, vy ) );
+    }
+
+    /**
+     * Start the corner filter of a new track at the track's corners. This must be called after the
+     * track's first read has been stored with set().
+     * @param slot Slot index
+     */
+    void resetSmoothing( int slot )
+    {
+        int offset = slot * Corner_Stride;
+
+        for ( int i = offset; i < offset + Corner_Stride; i++ )
+        {
+            mFiltered[i] = mCorners[i];
+            mFilteredRates[i] = 0;
+        }
+
+        System.arraycopy( mCorners, offset, mSmoothed, offset, Corner_Stride );
+        System.arraycopy( mCorners, offset, mPreviousCorners, offset, Corner_Stride );
+        System.arraycopy( mCorners, offset, mAnchors, offset, Corner_Stride );
+        mStationary[slot] = false;
+    }
+
+    /**
+     * Run a track's corner filter for a new read and update its stationary flag. This must be
+     * called after the read has been stored with set().
+     * @param slot    Slot index
+     * @param elapsed Time in milliseconds since the track was last read
+     * @param policy  Policy that provides the filter settings
+     */
+    void smooth( int slot, long elapsed, @NonNull TrackingPolicy policy )
+    {
+        int offset = slot * Corner_Stride;
+
+        System.arraycopy( mSmoothed, offset, mPreviousCorners, offset, Corner_Stride );
+
+        float minCutoff = policy.getSmoothingCutoff();
+
+        if ( minCutoff <= 0 || elapsed <= 0 )
+        {
+            for ( int i = offset; i < offset + Corner_Stride; i++ )
+            {
+                mFiltered[i] = mCorners[i];
+                mFilteredRates[i] = 0;
+            }
+
+            System.arraycopy( mCorners, offset, mSmoothed, offset, Corner_Stride );
+        }
+        else
+        {
+            float dt = elapsed / 1000f;
+            float rateAlpha = smoothingAlpha( dt, Rate_Cutoff );
+            float beta = policy.getSmoothingBeta();
+
+            for ( int i = offset; i < offset + Corner_Stride; i++ )
+            {
+                float rate = ( mCorners[i] - mFiltered[i] ) / dt;
+                mFilteredRates[i] += rateAlpha * ( rate - mFilteredRates[i] );
+
+                float alpha = smoothingAlpha( dt, minCutoff + beta * Math.abs( mFilteredRates[i] ) );
+                mFiltered[i] += alpha * ( mCorners[i] - mFiltered[i] );
+
+                mSmoothed[i] = Math.round( mFiltered[i] );
+            }
+        }
+
+        int threshold = policy.getStationaryThreshold();
+        boolean moved = false;
+
+        for ( int i = offset; i < offset + Corner_Stride; i++ )
+        {
+            if ( Math.abs( mSmoothed[i] - mAnchors[i] ) > threshold )
+            {
+                moved = true;
+                break;
+            }
+        }
+
+        if ( moved )
+            System.arraycopy( mSmoothed, offset, mAnchors, offset, Corner_Stride );
+
+        mStationary[slot] = !moved;
+    }
+
+    // Weight given to a new sample by a low pass filter with the given cutoff frequency
+    private static float smoothingAlpha( float dt, float cutoff )
+    {
+        float tau = 1f / ( 2f * (float) Math.PI * cutoff );
+
+        return 1f / ( 1f + tau / dt );
+    }
+
+    /**
+     * Move a track to the end of the least recently read list, adding it to the list if it isn't
+     * already on it.
+     * @param slot Slot index
+     */
+    void touch( int slot )
+    {
+        if ( slot == mLruTail )
+            return;
+
+        unlink( slot );
+
+        mLruPrevious[slot] = mLruTail;
+        mLruNext[slot] = -1;
+
+        if ( mLruTail >= 0 )
+            mLruNext[mLruTail] = slot;
+        else
+            mLruHead = slot;
+
+        mLruTail = slot;
+        mLruCount++;
+    }
+
+    /**
+     * Take a track off the least recently read list. Tracks that aren't on the list are ignored.
+     * @param slot Slot index
+     */
+    void unlink( int slot )
+    {
+        if ( mLruPrevious[slot] == Unlinked )
+            return;
+
+        int previous = mLruPrevious[slot];
+        int next = mLruNext[slot];
+
+        if ( previous >= 0 )
+            mLruNext[previous] = next;
+        else
+            mLruHead = next;
+
+        if ( next >= 0 )
+            mLruPrevious[next] = previous;
+        else
+            mLruTail = previous;
+
+        mLruPrevious[slot] = Unlinked;
+        mLruCount--;
+    }
+
+    /**
+     * Get the track that has gone longest without a read.
+     * @return Slot index, or -1 if the least recently read list is empty
+     */
+    int getLeastRecent()
+    {
+        return mLruHead;
+    }
+
+    /**
+     * Get the number of tracks on the least recently read list.
+     * @return Track count
+     */
+    int getLruCount()
+    {
+        return mLruCount;
+    }
+
+    /**
+     * Update a track's confidence for a frame.
+     * @param slot   Slot index
+     * @param hit    true if the track was read in the frame
+     * @param weight Weight given to the frame
+     */
+    void updateConfidence( int slot, boolean hit, float weight )
+    {
+        mConfidence[slot] += weight * ( ( hit ? 1f : 0f ) - mConfidence[slot] );
+    }
+
+    /**
+     * Calculate a track's predicted expanded region and center.
+     * @param slot    Slot index
+     * @param elapsed Time in milliseconds since the track was last read
+     */
+    void predict( int slot, long elapsed )
+    {
+        int dx = Math.round( mVelocities[slot * 2] * elapsed );
+        int dy = Math.round( mVelocities[slot * 2 + 1] * elapsed );
+
+        int offset = slot * Corner_Stride;
+
+        for ( int i = 0; i < Corner_Count; i++ )
+        {
+            mPredictedExpanded[offset + i * 2] = mExpanded[offset + i * 2] + dx;
+            mPredictedExpanded[offset + i * 2 + 1] = mExpanded[offset + i * 2 + 1] + dy;
+        }
+
+        ReaderResultCache.Region.bounds( mPredictedExpanded, offset, mPredictedBounds,
+                                         slot * ReaderResultCache.Region.Bounds_Stride );
+
+        mPredictedCenters[slot * 2] = mCenters[slot * 2] + dx;
+        mPredictedCenters[slot * 2 + 1] = mCenters[slot * 2 + 1] + dy;
+    }
+
+    /**
+     * Copy a list of points into a corner array.
+     * @param points Source points. Only the first Corner_Count points are used.
+     * @param out    Corner array
+     * @param offset Offset of the first corner in the array
+     */
+    static void copyPoints( @NonNull List<Point> points, @NonNull int[] out, int offset )
+    {
+        for ( int i = 0; i < Corner_Count; i++ )
+        {
+            Point pt = points.get( i );
+            out[offset + i * 2] = pt.x;
+            out[offset + i * 2 + 1] = pt.y;
+        }
+    }
+
+    /**
+     * Copy corners from a corner array into an existing list of points.
+     * @param corners Corner array
+     * @param offset  Offset of the first corner in the array
+     * @param points  Destination points. The list must hold Corner_Count points.
+     */
+    static void copyCorners( @NonNull int[] corners, int offset, @NonNull List<Point> points )
+    {
+        for ( int i = 0; i < Corner_Count; i++ )
+            points.get( i ).set( corners[offset + i * 2], corners[offset + i * 2 + 1] );
+    }
+
+    private void allocateArrays( int capacity )
+    {
+        int oldCapacity = mViews == null ? 0 : mViews.length;
+
+        mCorners = grow( mCorners, capacity * Corner_Stride );
+        mPreviousCorners = grow( mPreviousCorners, capacity * Corner_Stride );
+        mSmoothed = grow( mSmoothed, capacity * Corner_Stride );
+        mAnchors = grow( mAnchors, capacity * Corner_Stride );
+        mFiltered = mFiltered == null ? new float[capacity * Corner_Stride] : Arrays.copyOf( mFiltered, capacity * Corner_Stride );
+        mFilteredRates = mFilteredRates == null ? new float[capacity * Corner_Stride] :
+                         Arrays.copyOf( mFilteredRates, capacity * Corner_Stride );
+        mStationary = mStationary == null ? new boolean[capacity] : Arrays.copyOf( mStationary, capacity );
+        mLruPrevious = grow( mLruPrevious, capacity );
+        mLruNext = grow( mLruNext, capacity );
+        mEvicted = mEvicted == null ? new boolean[capacity] : Arrays.copyOf( mEvicted, capacity );
+        mCenters = grow( mCenters, capacity * 2 );
+        mExpanded = grow( mExpanded, capacity * Corner_Stride );
+        mPredictedExpanded = grow( mPredictedExpanded, capacity * Corner_Stride );
+        mPredictedBounds = grow( mPredictedBounds, capacity * ReaderResultCache.Region.Bounds_Stride );
+        mPredictedCenters = grow( mPredictedCenters, capacity * 2 );
+        mVelocities = mVelocities == null ? new float[capacity * 2] : Arrays.copyOf( mVelocities, capacity * 2 );
+        mPayloadHashes = grow( mPayloadHashes, capacity );
+        mMatchedFrame = grow( mMatchedFrame, capacity );
+        mOrder = grow( mOrder, capacity );
+        mStartTimes = mStartTimes == null ? new long[capacity] : Arrays.copyOf( mStartTimes, capacity );
+        mStartFrames = grow( mStartFrames, capacity );
+        mConfirmed = mConfirmed == null ? new boolean[capacity] : Arrays.copyOf( mConfirmed, capacity );
+        mHits = grow( mHits, capacity );
+        mFirstFrames = grow( mFirstFrames, capacity );
+        mConfidence = mConfidence == null ? new float[capacity] : Arrays.copyOf( mConfidence, capacity );
+        mFreeList = grow( mFreeList, capacity );
+
+        if ( oldCapacity == 0 )
+        {
+            mPayloads = new Payload[capacity];
+            mMetadata = new DataDictionary[capacity];
+            mViews = new ReaderResultCache.ReadData[capacity];
+        }
+        else
+        {
+            mPayloads = Arrays.copyOf( mPayloads, capacity );
+            mMetadata = Arrays.copyOf( mMetadata, capacity );
+            mViews = Arrays.copyOf( mViews, capacity );
+        }
+    }
+
+    @NonNull
+    private static int[] grow( int[] array, int length )
+    {
+        return array == null ? new int[length] : Arrays.copyOf( array, length );
+    }
+}
@@ -0,0 +1,507 @@
+package com.digimarc.dmstocktake;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Tuning values used by ReaderResultCache to decide how long a track survives without being read
+ * and how far a track's region is expanded for matching.
+ * <p>
+ * A fixed policy keeps tracks for a fixed time after their last read. An adaptive policy measures
+ * the cadence at which result frames arrive and keeps tracks for a number of frames instead,
+ * so slow devices don't lose tracks after only two or three frames and fast devices don't carry
+ * stale tracks for fifteen. The frame based time to live is limited to a minimum and maximum time.
+ * <p>
+ * A policy also sets how new tracks are confirmed. By default a single read creates a visible
+ * track. With promotion enabled a new track stays tentative (it is matched but not reported)
+ * until it has been read a number of times within a window of frames, so a single spurious
+ * decode never reaches the results. Each track also carries a confidence score, an exponentially
+ * weighted hit rate, and a confirmed track whose confidence falls below the demotion threshold
+ * is removed without waiting for its time to live to run out.
+ * <p>
+ * The corners reported for a track can be smoothed over time with a One-Euro filter, which
+ * smooths heavily while a code is still and follows it closely when it moves. A track is marked
+ * stationary while its smoothed corners stay within a pixel threshold of where they were when it
+ * last moved, so renderers can skip redrawing it.
+ * <p>
+ * Policies are created with a Builder. A policy measures cadence for the cache it is given to, so
+ * each cache needs its own instance.
+ */
+public class TrackingPolicy
+{
+    // Default time to live (in milliseconds) for fixed policies, and for adaptive policies until
+    // the frame cadence has been measured
+    private static final long Default_Max_Interval = 500;
+
+    // Defaults for adaptive policies: time to live in frames and the limits on the resulting time
+    private static final int Default_Max_Frames = 6;
+    private static final long Default_Min_Interval = 300;
+    private static final long Default_Max_Interval_Limit = 2000;
+
+    private static final float Default_Small_Code_Threshold = 0.2f;
+    private static final float Default_Large_Code_Threshold = 0.4f;
+
+    private static final float Default_Expansion_Small = 2.5f;
+    private static final float Default_Expansion_Medium = .8f;
+    private static final float Default_Expansion_Large = .35f;
+
+    // Defaults for track confirmation: a single read confirms a track and demotion is disabled
+    private static final int Default_Promotion_Hits = 1;
+    private static final int Default_Promotion_Window = 1;
+    private static final float Default_Demotion_Threshold = 0f;
+    private static final float Default_Confidence_Weight = 0.25f;
+    private static final int Default_Max_Tentative = 256;
+
+    // Default limit on the number of confirmed tracks, enough for every code in view on a densely
+    // stocked shelf
+    private static final int Default_Max_Tracks = 4096;
+
+    // Defaults for corner smoothing: disabled, with any move ending a track's stationary state
+    private static final float Default_Smoothing_Cutoff = 0f;
+    private static final float Default_Smoothing_Beta = 0f;
+    private static final int Default_Stationary_Threshold = 0;
+
+    // Weight given to each new frame interval in the cadence average
+    private static final float Cadence_Weight = 0.1f;
+
+    // Gaps longer than this (e.g. the app was paused) are not counted as frame intervals
+    private static final long Max_Frame_Gap = 1000;
+
+    private final long mMaxInterval;
+    private final int mMaxFrames;
+    private final long mMinInterval;
+    private final long mMaxIntervalLimit;
+
+    private final float mSmallCodeThreshold;
+    private final float mLargeCodeThreshold;
+    private final float mExpansionSmall;
+    private final float mExpansionMedium;
+    private final float mExpansionLarge;
+
+    private final int mPromotionHits;
+    private final int mPromotionWindow;
+    private final float mDemotionThreshold;
+    private final float mConfidenceWeight;
+    private final int mMaxTentative;
+    private final int mMaxTracks;
+
+    private final float mSmoothingCutoff;
+    private final float mSmoothingBeta;
+    private final int mStationaryThreshold;
+
+    private long mLastFrameTime = -1;
+    private float mFrameInterval = 0;
+
+    private TrackingPolicy( @NonNull Builder builder )
+    {
+        mMaxInterval = builder.mMaxInterval;
+        mMaxFrames = builder.mMaxFrames;
+        mMinInterval = builder.mMinInterval;
+        mMaxIntervalLimit = builder.mMaxIntervalLimit;
+        mSmallCodeThreshold = builder.mSmallCodeThreshold;
+        mLargeCodeThreshold = builder.mLargeCodeThreshold;
+        mExpansionSmall = builder.mExpansionSmall;
+        mExpansionMedium = builder.mExpansionMedium;
+        mExpansionLarge = builder.mExpansionLarge;
+        mPromotionHits = builder.mPromotionHits;
+        mPromotionWindow = builder.mPromotionWindow;
+        mDemotionThreshold = builder.mDemotionThreshold;
+        mConfidenceWeight = builder.mConfidenceWeight;
+        mMaxTentative = builder.mMaxTentative;
+        mMaxTracks = builder.mMaxTracks;
+        mSmoothingCutoff = builder.mSmoothingCutoff;
+        mSmoothingBeta = builder.mSmoothingBeta;
+        mStationaryThreshold = builder.mStationaryThreshold;
+    }
+
+    /**
+     * Create a builder for a TrackingPolicy. The builder starts with the values of the original
+     * fixed policy.
+     * @return Builder object
+     */
+    @NonNull
+    public static Builder Builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Create a policy that keeps tracks for a fixed 500 ms after their last read.
+     * @return TrackingPolicy object
+     */
+    @NonNull
+    public static TrackingPolicy fixed()
+    {
+        return Builder().build();
+    }
+
+    /**
+     * Create a policy that keeps tracks for six frames after their last read, limited to between
+     * 300 ms and 2 seconds.
+     * @return TrackingPolicy object
+     */
+    @NonNull
+    public static TrackingPolicy adaptive()
+    {
+        return Builder().setAdaptive().build();
+    }
+
+    /**
+     * Records the time of a new frame. Called by ReaderResultCache from startFrame().
+     * @param frameTime Frame time in milliseconds
+     */
+    void onFrame( long frameTime )
+    {
+        if ( mLastFrameTime >= 0 )
+        {
+            long interval = frameTime - mLastFrameTime;
+
+            if ( interval > 0 && interval <= Max_Frame_Gap )
+            {
+                if ( mFrameInterval == 0 )
+                    mFrameInterval = interval;
+                else
+                    mFrameInterval += Cadence_Weight * ( interval - mFrameInterval );
+            }
+        }
+
+        mLastFrameTime = frameTime;
+    }
+
+    /**
+     * Get the measured average time between frames.
+     * @return Frame interval in milliseconds, or 0 if it hasn't been measured yet.
+     */
+    public float getFrameInterval()
+    {
+        return mFrameInterval;
+    }
+
+    /**
+     * Get how long a track may go without being read before it is removed.
+     * @return Time to live in milliseconds
+     */
+    public long getMaxInterval()
+    {
+        if ( mMaxFrames <= 0 || mFrameInterval == 0 )
+            return mMaxInterval;
+
+        long interval = Math.round( mMaxFrames * mFrameInterval );
+
+        return Math.max( mMinInterval, Math.min( mMaxIntervalLimit, interval ) );
+    }
+
+    /**
+     * Get the factor used to expand a region vertically for matching. The expansion factor is a
+     * multiplier that is applied to the region's height in each direction. The flatter a region is
+     * (e.g. a shelf edge code) the more it is expanded.
+     * @param codeScale Aspect ratio of the region (height / width)
+     * @return Expansion factor
+     */
+    float getExpansionFactor( double codeScale )
+    {
+        if ( codeScale < mSmallCodeThreshold )             // shelf edge code - shorter than 2/10
+            return mExpansionSmall;
+        else if ( codeScale < mLargeCodeThreshold )        // medium size code (Target 4) - shorter than 4/10
+            return mExpansionMedium;
+        else
+            return mExpansionLarge;                        // Normal size code, 4/10 or larger
+    }
+
+    /**
+     * Get the number of reads needed to confirm a new track.
+     * @return Read count. A value of 1 confirms tracks on their first read.
+     */
+    int getPromotionHits()
+    {
+        return mPromotionHits;
+    }
+
+    /**
+     * Get the number of frames, starting with a track's first read, within which a tentative
+     * track must be confirmed. Tentative tracks that are not confirmed in time are discarded.
+     * @return Frame count
+     */
+    int getPromotionWindow()
+    {
+        return mPromotionWindow;
+    }
+
+    /**
+     * Get the confidence below which a confirmed track is removed.
+     * @return Confidence threshold, or 0 if demotion is disabled.
+     */
+    float getDemotionThreshold()
+    {
+        return mDemotionThreshold;
+    }
+
+    /**
+     * Get the weight given to each frame in a track's confidence score.
+     * @return Weight between 0 and 1
+     */
+    float getConfidenceWeight()
+    {
+        return mConfidenceWeight;
+    }
+
+    /**
+     * Get the limit on the number of tentative tracks. Reads that would start a new tentative
+     * track beyond this limit are ignored.
+     * @return Tentative track limit
+     */
+    int getMaxTentative()
+    {
+        return mMaxTentative;
+    }
+
+    /**
+     * Get the limit on the number of confirmed tracks.
+     * @return Track limit
+     */
+    int getMaxTracks()
+    {
+        return mMaxTracks;
+    }
+
+    /**
+     * Get the minimum cutoff frequency of the corner filter.
+     * @return Cutoff in Hz, or 0 if smoothing is disabled.
+     */
+    float getSmoothingCutoff()
+    {
+        return mSmoothingCutoff;
+    }
+
+    /**
+     * Get how quickly the corner filter's cutoff rises with the speed of the corners.
+     * @return Cutoff increase in Hz per pixel per second
+     */
+    float getSmoothingBeta()
+    {
+        return mSmoothingBeta;
+    }
+
+    /**
+     * Get the distance a track's smoothed corners may move while it is still stationary.
+     * @return Threshold in pixels
+     */
+    int getStationaryThreshold()
+    {
+        return mStationaryThreshold;
+    }
+
+    /**
+     * Builder for TrackingPolicy objects.
+     */
+    public static class Builder
+    {
+        private long mMaxInterval = Default_Max_Interval;
+        private int mMaxFrames = 0;
+        private long mMinInterval = Default_Min_Interval;
+        private long mMaxIntervalLimit = Default_Max_Interval_Limit;
+
+        private float mSmallCodeThreshold = Default_Small_Code_Threshold;
+        private float mLargeCodeThreshold = Default_Large_Code_Threshold;
+        private float mExpansionSmall = Default_Expansion_Small;
+        private float mExpansionMedium = Default_Expansion_Medium;
+        private float mExpansionLarge = Default_Expansion_Large;
+
+        private int mPromotionHits = Default_Promotion_Hits;
+        private int mPromotionWindow = Default_Promotion_Window;
+        private float mDemotionThreshold = Default_Demotion_Threshold;
+        private float mConfidenceWeight = Default_Confidence_Weight;
+        private int mMaxTentative = Default_Max_Tentative;
+        private int mMaxTracks = Default_Max_Tracks;
+
+        private float mSmoothingCutoff = Default_Smoothing_Cutoff;
+        private float mSmoothingBeta = Default_Smoothing_Beta;
+        private int mStationaryThreshold = Default_Stationary_Threshold;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Set the fixed time to live. Adaptive policies use this value until the frame cadence
+         * has been measured.
+         * @param interval Time in milliseconds
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setMaxInterval( long interval )
+        {
+            mMaxInterval = interval;
+            return this;
+        }
+
+        /**
+         * Set the time to live in frames. A value of 0 (the default) makes a fixed policy.
+         * @param frames Number of frames
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setMaxFrames( int frames )
+        {
+            mMaxFrames = frames;
+            return this;
+        }
+
+        /**
+         * Set the time to live to six frames, as used by adaptive().
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setAdaptive()
+        {
+            return setMaxFrames( Default_Max_Frames );
+        }
+
+        /**
+         * Set the limits for the time to live of an adaptive policy.
+         * @param min Minimum time in milliseconds
+         * @param max Maximum time in milliseconds
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setIntervalLimits( long min, long max )
+        {
+            mMinInterval = min;
+            mMaxIntervalLimit = max;
+            return this;
+        }
+
+        /**
+         * Set the aspect ratio thresholds that separate small, medium and large codes.
+         * @param small Codes with a height / width ratio below this are small
+         * @param large Codes with a height / width ratio at or above this are large
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setCodeThresholds( float small, float large )
+        {
+            mSmallCodeThreshold = small;
+            mLargeCodeThreshold = large;
+            return this;
+        }
+
+        /**
+         * Set the expansion factors for small, medium and large codes.
+         * @param small  Factor for small codes
+         * @param medium Factor for medium codes
+         * @param large  Factor for large codes
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setExpansion( float small, float medium, float large )
+        {
+            mExpansionSmall = small;
+            mExpansionMedium = medium;
+            mExpansionLarge = large;
+            return this;
+        }
+
+        /**
+         * Set how new tracks are confirmed. A new track must be read hits times within window
+         * frames (counting the frame of its first read) before it is reported. Until then the
+         * track is matched to reads but doesn't appear in the results.
+         * @param hits   Number of reads needed. 1 (the default) confirms tracks on their first read.
+         * @param window Number of frames within which the reads must occur
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setPromotion( int hits, int window )
+        {
+            mPromotionHits = Math.max( 1, hits );
+            mPromotionWindow = Math.max( mPromotionHits, window );
+            return this;
+        }
+
+        /**
+         * Set the confidence below which a confirmed track is removed. A track's confidence rises
+         * towards 1 in frames where it is read and decays towards 0 in frames where it isn't.
+         * @param threshold Confidence threshold. 0 (the default) disables demotion.
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setDemotionThreshold( float threshold )
+        {
+            mDemotionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Set the weight given to each frame in a track's confidence score. Higher weights make
+         * the score respond faster.
+         * @param weight Weight between 0 and 1
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setConfidenceWeight( float weight )
+        {
+            mConfidenceWeight = Math.max( 0f, Math.min( 1f, weight ) );
+            return this;
+        }
+
+        /**
+         * Set the limit on the number of tentative tracks held at once.
+         * @param count Tentative track limit
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setMaxTentativeTracks( int count )
+        {
+            mMaxTentative = count;
+            return this;
+        }
+
+        /**
+         * Set the limit on the number of confirmed tracks held at once. When a new track is
+         * confirmed at the limit, the track that has gone longest without a read is evicted. If
+         * every track was read in the current frame the new track is dropped instead.
+         * @param count Track limit. The default is 4096.
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setMaxTracks( int count )
+        {
+            mMaxTracks = Math.max( 1, count );
+            return this;
+        }
+
+        /**
+         * Set up smoothing of track corners with a One-Euro filter. The filter's cutoff frequency
+         * is minCutoff while a corner is still and rises by beta for each pixel per second of
+         * movement, so still codes are smoothed heavily and moving codes lag very little. A beta
+         * of 0 gives a plain exponential filter.
+         * @param minCutoff Minimum cutoff frequency in Hz. 0 (the default) disables smoothing.
+         * @param beta      Cutoff increase in Hz per pixel per second
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setSmoothing( float minCutoff, float beta )
+        {
+            mSmoothingCutoff = minCutoff;
+            mSmoothingBeta = beta;
+            return this;
+        }
+
+        /**
+         * Set the distance a track's smoothed corners may move from where they were when the
+         * track last moved before it is no longer stationary.
+         * @param pixels Threshold in pixels. The default is 0.
+         * @return Builder object
+         */
+        @NonNull
+        public Builder setStationaryThreshold( int pixels )
+        {
+            mStationaryThreshold = pixels;
+            return this;
+        }
+
+        @NonNull
+        public TrackingPolicy build()
+        {
+            return new TrackingPolicy( this );
+        }
+    }
+}